@@ -112,6 +112,7 @@ public class SMS {
         public static final int RESOLUTION = 4;
         public static final int SUBTITLES = 5;
         public static final int MISSING_DATA = 6;
+        public static final int KEY_FRAME_INTERVAL = 7;
     }
     
     public static class Rule {
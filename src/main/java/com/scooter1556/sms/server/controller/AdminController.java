@@ -27,18 +27,24 @@ import com.scooter1556.sms.server.SMS;
 import com.scooter1556.sms.server.dao.MediaDao;
 import com.scooter1556.sms.server.dao.SettingsDao;
 import com.scooter1556.sms.server.dao.UserDao;
+import com.scooter1556.sms.server.domain.DatabaseStats;
 import com.scooter1556.sms.server.domain.MediaElement;
 import com.scooter1556.sms.server.domain.MediaFolder;
 import com.scooter1556.sms.server.domain.Playlist;
+import com.scooter1556.sms.server.domain.PostProcessStats;
+import com.scooter1556.sms.server.domain.SegmentCacheStats;
 import com.scooter1556.sms.server.domain.User;
 import com.scooter1556.sms.server.domain.UserStats;
 import com.scooter1556.sms.server.domain.UserRole;
 import com.scooter1556.sms.server.domain.UserRule;
 import com.scooter1556.sms.server.domain.UserRuleRequest;
+import com.scooter1556.sms.server.io.PostProcessScheduler;
+import com.scooter1556.sms.server.io.SegmentCache;
 import com.scooter1556.sms.server.service.LogService;
 import com.scooter1556.sms.server.service.LogService.Level;
 import com.scooter1556.sms.server.service.ScannerService;
 import com.scooter1556.sms.server.service.UserService;
+import com.scooter1556.sms.server.utilities.DatabaseUtils;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
@@ -739,6 +745,48 @@ public class AdminController {
         return new ResponseEntity<>(scannerService.getDeepScanCount(), HttpStatus.OK);
     }
 
+    //
+    // Database
+    //
+    
+    @ApiOperation(value = "Get database connection pool statistics")
+    @ApiResponses(value = {
+        @ApiResponse(code = HttpServletResponse.SC_OK, message = "Database statistics returned successfully")
+    })
+    @RequestMapping(value="/database/stats", method=RequestMethod.GET)
+    public ResponseEntity<List<DatabaseStats>> getDatabaseStats()
+    {   
+        return new ResponseEntity<>(DatabaseUtils.getDatabaseStats(), HttpStatus.OK);
+    }
+
+    //
+    // Cache
+    //
+    
+    @ApiOperation(value = "Get segment cache statistics")
+    @ApiResponses(value = {
+        @ApiResponse(code = HttpServletResponse.SC_OK, message = "Segment cache statistics returned successfully")
+    })
+    @RequestMapping(value="/cache/segment/stats", method=RequestMethod.GET)
+    public ResponseEntity<SegmentCacheStats> getSegmentCacheStats()
+    {   
+        return new ResponseEntity<>(SegmentCache.getInstance().getStats(), HttpStatus.OK);
+    }
+
+    //
+    // Streaming
+    //
+    
+    @ApiOperation(value = "Get segment post-processing statistics")
+    @ApiResponses(value = {
+        @ApiResponse(code = HttpServletResponse.SC_OK, message = "Post-processing statistics returned successfully")
+    })
+    @RequestMapping(value="/postprocess/stats", method=RequestMethod.GET)
+    public ResponseEntity<PostProcessStats> getPostProcessStats()
+    {   
+        return new ResponseEntity<>(PostProcessScheduler.getInstance().getStats(), HttpStatus.OK);
+    }
+
     //
     // Log
     //
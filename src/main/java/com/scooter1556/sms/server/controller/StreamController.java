@@ -39,6 +39,7 @@ import com.scooter1556.sms.server.domain.VideoTranscode.VideoQuality;
 import com.scooter1556.sms.server.io.AdaptiveStreamingProcess;
 import com.scooter1556.sms.server.io.FileDownloadProcess;
 import com.scooter1556.sms.server.io.SMSProcess;
+import com.scooter1556.sms.server.io.SegmentCache;
 import com.scooter1556.sms.server.service.AdaptiveStreamingService;
 import com.scooter1556.sms.server.service.LogService;
 import com.scooter1556.sms.server.service.ScannerService;
@@ -53,16 +54,15 @@ import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
 import java.util.Enumeration;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.lang3.ArrayUtils;
@@ -213,7 +213,6 @@ public class StreamController {
         Job job = null;
         TranscodeProfile profile;
         AdaptiveStreamingProcess transcodeProcess;
-        SMSProcess process = null;
         File segment;
 
         try {
@@ -259,87 +258,163 @@ public class StreamController {
                 return;
             }
 
+            // Update segment tracking, including segments served from the cache
+            int num = -1, oldNum = -1;
+
+            if(!file.startsWith("init")) {
+                num = Integer.parseInt(FilenameUtils.getBaseName(file));
+                oldNum = transcodeProcess.getSegmentNum(job.getId());
+                transcodeProcess.setSegmentNum(job.getId(), num);
+            }
+
+            // Serve previously transcoded segments from the cache without involving the transcode process
+            if(!file.startsWith("init")) {
+                File cached = SegmentCache.getInstance().get(transcodeProcess.getCacheKey(extra + "-" + type + "-" + file));
+
+                if(cached != null) {
+                    sendSegment(job, cached, type, extra, file, request, response);
+                    return;
+                }
+            }
+
             // Check if the transcode process needs restarting
             if(transcodeProcess.isSuspended()) {
-                adaptiveStreamingService.initialise(job, 0);
+                transcodeProcess = adaptiveStreamingService.resume(job);
+            }
+
+            if(transcodeProcess == null) {
+                LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Failed to restart adaptive streaming process for job " + job.getId() + ".", null);
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to restart transcode process.");
+                return;
             }
 
             // Initialise segment information
-            segment = new File(SettingsService.getInstance().getCacheDirectory().getPath() + File.separator + "streams" + File.separator + job.getId() + File.separator + extra + "-" + type + "-" + file);
+            final String name = extra + "-" + type + "-" + file;
+            segment = new File(transcodeProcess.getStreamDirectory(), name);
+
+            // A restart already waiting for seeking to settle
+            CompletableFuture<AdaptiveStreamingProcess> restart = adaptiveStreamingService.getSeek(job.getId());
 
             if(!file.startsWith("init")) {
-                // Update segment tracking
-                int num = Integer.parseInt(FilenameUtils.getBaseName(file));
-                int oldNum = transcodeProcess.getSegmentNum();
-                transcodeProcess.setSegmentNum(num);
-
-                // If segment requested is not the next chronologically check if we need to start a new transcode process
-                if(num != oldNum && num != (oldNum + 1) && !segment.exists()) {
-                    LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Starting new transcode process.", null);
-                    adaptiveStreamingService.initialise(job, num);
+                // If segment requested won't be produced shortly restart the transcode at the new position.
+                // Segments which follow on from those served from the cache may be well ahead of the transcode.
+                if(num != oldNum && !segment.exists() && !transcodeProcess.isProducing(num)) {
+                    LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Seeking to segment " + num + " for job " + job.getId() + ".", null);
+                    restart = adaptiveStreamingService.seek(job, num);
                 }
             }
 
-            // Check if segment is available and wait for it if not
+            // Check if segment is available and wait for it if not.
+            // The request thread is released while waiting and the response is completed when the segment is ready.
             if(!segment.exists()) {
-                // Watch work directory for segments
-                WatchService watcher;
-                watcher = FileSystems.getDefault().newWatchService();
-                Path workdir = Paths.get(segment.getParent());
-                workdir.register(watcher, ENTRY_CREATE);
-                boolean isFound = false;
-
-                while(!isFound) {
-                    WatchKey key;
-
-                    // Do a simple check
-                    if(segment.exists()) {
-                        isFound = true;
-                        break;
+                final AsyncContext context = request.startAsync();
+                final AtomicBoolean handled = new AtomicBoolean(false);
+                final AtomicReference<Runnable> release = new AtomicReference<>();
+                final Job segmentJob = job;
+                final File pendingSegment = segment;
+                
+                context.setTimeout(SettingsService.getInstance().getSegmentTimeout() * 1000L);
+                context.addListener(new AsyncListener() {
+                    @Override
+                    public void onTimeout(AsyncEvent event) throws IOException {
+                        if(handled.compareAndSet(false, true)) {
+                            stopWaiting(release);
+                            LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Timed out waiting for segment " + file + " for job " + segmentJob.getId() + ".", null);
+                            response.sendError(HttpServletResponse.SC_NO_CONTENT, "Requested segment is not available.");
+                            context.complete();
+                        }
                     }
-
-                    try {
-                        key = watcher.poll(TranscodeUtils.DEFAULT_SEGMENT_DURATION, TimeUnit.SECONDS);
-                    } catch (InterruptedException ex) {
-                        return;
+                    
+                    @Override
+                    public void onComplete(AsyncEvent event) {}
+                    
+                    @Override
+                    public void onError(AsyncEvent event) {
+                        if(handled.compareAndSet(false, true)) {
+                            stopWaiting(release);
+                        }
                     }
-
-                    // Check for timeout
-                    if(key == null) {
-                        LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "No activity for job " + job.getId() + " in more than " + TranscodeUtils.DEFAULT_SEGMENT_DURATION + " seconds!", null);
-                        break;
+                    
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {}
+                });
+                
+                // The job may be attached to a different process once a pending restart has happened
+                CompletableFuture<File> ready;
+                
+                if(restart == null) {
+                    ready = waitForSegment(transcodeProcess, pendingSegment, release);
+                } else {
+                    ready = restart.thenCompose((process) -> {
+                        // Superseded by a later seek or the request has already timed out
+                        if(process == null || handled.get()) {
+                            CompletableFuture<File> superseded = new CompletableFuture<>();
+                            superseded.cancel(false);
+                            return superseded;
+                        }
+                        
+                        CompletableFuture<File> pending = waitForSegment(process, new File(process.getStreamDirectory(), name), release);
+                        
+                        // Request may have timed out while we started waiting
+                        if(handled.get()) {
+                            stopWaiting(release);
+                        }
+                        
+                        return pending;
+                    });
+                }
+                
+                ready.whenComplete((result, error) -> {
+                    if(!handled.compareAndSet(false, true)) {
+                        return;
                     }
-
-                    for(WatchEvent<?> event : key.pollEvents()) {
-                        WatchEvent.Kind<?> kind = event.kind();
-                        WatchEvent<Path> pathEvent = (WatchEvent<Path>) event;
-                        Path filePath = pathEvent.context();
-
-                        if(kind == ENTRY_CREATE) {
-                            if(filePath.toString().equals(segment.getPath())) {
-                                isFound = true;
-                                break;
+                    
+                    context.start(() -> {
+                        try {
+                            if(error == null) {
+                                sendSegment(segmentJob, result, type, extra, file, request, response);
+                            } else {
+                                LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Segment " + file + " for job " + segmentJob.getId() + " will not be produced.", null);
+                                response.sendError(HttpServletResponse.SC_NO_CONTENT, "Requested segment is not available.");
                             }
+                        } catch (IOException ex) {
+                            // Called if client closes the connection early.
+                        } finally {
+                            context.complete();
                         }
-                    }
-
-                    // Reset key
-                    if(!key.reset()) {
-                        break;
-                    }
-                }
-
-                // Cancel watch service
-                watcher.close();
-
-                if(!isFound) {
-                    // Timed out waiting for segment
-                    LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Timed out waiting for segment " + file + " for job " + job.getId() + ".", null);
-                    response.sendError(HttpServletResponse.SC_NO_CONTENT, "Requested segment is not available.");
-                    return;
-                }
+                    });
+                });
+                
+                return;
             }
 
+            sendSegment(job, segment, type, extra, file, request, response);
+        } catch (IOException ex) {
+            // Called if client closes the connection early.
+        }
+    }
+    
+    // Wait for a segment from a process, recording how to stop waiting for it
+    private CompletableFuture<File> waitForSegment(AdaptiveStreamingProcess process, File segment, AtomicReference<Runnable> release) {
+        CompletableFuture<File> pending = process.getSegment(segment);
+        release.set(() -> process.releaseSegment(segment, pending));
+        return pending;
+    }
+    
+    // Stop tracking a segment a request is no longer waiting for
+    private void stopWaiting(AtomicReference<Runnable> release) {
+        Runnable action = release.getAndSet(null);
+        
+        if(action != null) {
+            action.run();
+        }
+    }
+    
+    // Send a segment which is available to the client
+    private void sendSegment(Job job, File segment, String type, Integer extra, String file, HttpServletRequest request, HttpServletResponse response) {
+        SMSProcess process = null;
+        
+        try {
             // Get file type
             String mimeType = MediaUtils.getMimeType(MediaUtils.getType(type), MediaUtils.getFormatForExtension(FilenameUtils.getExtension(file)));
 
@@ -352,7 +427,7 @@ public class StreamController {
             // Called if client closes the connection early.
             LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Client closed connection early", ex);
         } finally {
-            if(process != null && job != null) {
+            if(process != null) {
                 job.setBytesTransferred(job.getBytesTransferred() + process.getBytesTransferred());
             }
         }
@@ -734,6 +809,12 @@ public class StreamController {
 
             }
 
+            // Start with short segments so playback can begin sooner, stream copies can only be split on existing key frames
+            if(!TranscodeUtils.isVideoCopy(transcodeProfile) && transcodeProfile.getSegmentDuration() > TranscodeUtils.DEFAULT_INITIAL_SEGMENT_DURATION) {
+                transcodeProfile.setInitialSegmentDuration(TranscodeUtils.DEFAULT_INITIAL_SEGMENT_DURATION);
+                transcodeProfile.setInitialSegmentCount(TranscodeUtils.DEFAULT_INITIAL_SEGMENT_COUNT);
+            }
+
             // Set MIME Type
             if(clientProfile.getFormat() != null) {
                 transcodeProfile.setMimeType(MediaUtils.getMimeType(mediaElement.getType(), clientProfile.getFormat()));
@@ -25,27 +25,33 @@ package com.scooter1556.sms.server.dao;
 
 import com.scooter1556.sms.server.database.MediaDatabase;
 import com.scooter1556.sms.server.database.MediaDatabase.AudioStreamMapper;
+import com.scooter1556.sms.server.database.MediaDatabase.IndexEntryMapper;
 import com.scooter1556.sms.server.database.MediaDatabase.MediaElementMapper;
 import com.scooter1556.sms.server.database.MediaDatabase.PlaylistMapper;
 import com.scooter1556.sms.server.database.MediaDatabase.SubtitleStreamMapper;
 import com.scooter1556.sms.server.database.MediaDatabase.VideoStreamMapper;
+import com.scooter1556.sms.server.domain.KeyFrameIndex;
 import com.scooter1556.sms.server.domain.MediaElement;
 import com.scooter1556.sms.server.domain.MediaElement.AudioStream;
+import com.scooter1556.sms.server.domain.MediaElement.IndexEntry;
 import com.scooter1556.sms.server.domain.MediaElement.MediaElementType;
 import com.scooter1556.sms.server.domain.MediaElement.SubtitleStream;
 import com.scooter1556.sms.server.domain.MediaElement.VideoStream;
 import com.scooter1556.sms.server.domain.Playlist;
 import com.scooter1556.sms.server.service.LogService;
+import java.io.File;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.BooleanSupplier;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jca.cci.InvalidResultSetAccessException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionException;
 
 @Component
 public class MediaDao {
@@ -54,14 +60,35 @@ public class MediaDao {
     
     @Autowired
     private MediaDatabase mediaDatabase;
+    
+    //
+    // Runs a set of updates in a single transaction which is rolled back if any of them fail.
+    //
+    public boolean executeInTransaction(final BooleanSupplier updates) {
+        try {
+            Boolean result = mediaDatabase.getTransactionTemplate().execute(status -> {
+                if(!updates.getAsBoolean()) {
+                    status.setRollbackOnly();
+                    return false;
+                }
+                
+                return true;
+            });
+            
+            return result != null && result;
+        } catch (TransactionException e) {
+            LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Failed to complete database transaction!", e);
+            return false;
+        }
+    }
         
     //
     // Media Elements
     //
     
     public boolean createMediaElements(final List<MediaElement> mediaElements) {
-        String sql = "INSERT INTO MediaElement (ID,Type,DirectoryType,Path,ParentPath,LastScanned,Excluded,Format,Size,Duration,Bitrate,Title,Artist,AlbumArtist,Album,Year,DiscNumber,DiscSubtitle,TrackNumber,Genre,Rating,Tagline,Description,Certificate,Collection,ReplaygainTrack,ReplaygainAlbum) " +
-                                "VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+        String sql = "INSERT INTO MediaElement (ID,Type,DirectoryType,Path,ParentPath,LastScanned,Excluded,Format,Size,LastModified,Inode,Duration,Bitrate,Title,Artist,AlbumArtist,Album,Year,DiscNumber,DiscSubtitle,TrackNumber,Genre,Rating,Tagline,Description,Certificate,Collection,ReplaygainTrack,ReplaygainAlbum) " +
+                                "VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
         
         try {
             mediaDatabase.getJdbcTemplate().batchUpdate(sql, new BatchPreparedStatementSetter() {	
@@ -77,24 +104,26 @@ public class MediaDao {
                     ps.setBoolean(7, mediaElement.getExcluded());
                     ps.setInt(8, mediaElement.getFormat());
                     ps.setLong(9, mediaElement.getSize());
-                    ps.setDouble(10, mediaElement.getDuration());
-                    ps.setInt(11, mediaElement.getBitrate());
-                    ps.setString(12, mediaElement.getTitle());
-                    ps.setString(13, mediaElement.getArtist());
-                    ps.setString(14, mediaElement.getAlbumArtist());
-                    ps.setString(15, mediaElement.getAlbum());
-                    ps.setShort(16, mediaElement.getYear());
-                    ps.setShort(17, mediaElement.getDiscNumber());
-                    ps.setString(18, mediaElement.getDiscSubtitle());
-                    ps.setShort(19,mediaElement.getTrackNumber());
-                    ps.setString(20, mediaElement.getGenre());
-                    ps.setFloat(21, mediaElement.getRating());
-                    ps.setString(22, mediaElement.getTagline());
-                    ps.setString(23, mediaElement.getDescription());
-                    ps.setString(24, mediaElement.getCertificate());
-                    ps.setString(25, mediaElement.getCollection());
-                    ps.setFloat(26, mediaElement.getReplaygainTrack());
-                    ps.setFloat(27, mediaElement.getReplaygainAlbum());
+                    ps.setTimestamp(10, mediaElement.getLastModified());
+                    ps.setObject(11, mediaElement.getInode());
+                    ps.setDouble(12, mediaElement.getDuration());
+                    ps.setInt(13, mediaElement.getBitrate());
+                    ps.setString(14, mediaElement.getTitle());
+                    ps.setString(15, mediaElement.getArtist());
+                    ps.setString(16, mediaElement.getAlbumArtist());
+                    ps.setString(17, mediaElement.getAlbum());
+                    ps.setShort(18, mediaElement.getYear());
+                    ps.setShort(19, mediaElement.getDiscNumber());
+                    ps.setString(20, mediaElement.getDiscSubtitle());
+                    ps.setShort(21,mediaElement.getTrackNumber());
+                    ps.setString(22, mediaElement.getGenre());
+                    ps.setFloat(23, mediaElement.getRating());
+                    ps.setString(24, mediaElement.getTagline());
+                    ps.setString(25, mediaElement.getDescription());
+                    ps.setString(26, mediaElement.getCertificate());
+                    ps.setString(27, mediaElement.getCollection());
+                    ps.setFloat(28, mediaElement.getReplaygainTrack());
+                    ps.setFloat(29, mediaElement.getReplaygainAlbum());
                 }
 
                 @Override
@@ -135,7 +164,7 @@ public class MediaDao {
     }
     
     public void removeDeletedMediaElements(String path, Timestamp lastScanned) {            
-        mediaDatabase.getJdbcTemplate().update("DELETE FROM MediaElement WHERE ParentPath LIKE ? AND LastScanned != ?", new Object[] {path + "%",lastScanned});
+        mediaDatabase.getJdbcTemplate().update("DELETE FROM MediaElement WHERE (ParentPath=? OR ParentPath LIKE ?) AND LastScanned != ?", new Object[] {path, path + File.separator + "%", lastScanned});
     }
     
     public void removeMediaElementsByPath(String path) {            
@@ -143,7 +172,7 @@ public class MediaDao {
     }
     
     public boolean updateMediaElementsByID(final List<MediaElement> mediaElements) {
-        String sql = "UPDATE MediaElement SET DirectoryType=?,LastScanned=?,Excluded=?,Size=?,Duration=?,Bitrate=?,Title=?,Artist=?,AlbumArtist=?,Album=?,Year=?,DiscNumber=?,DiscSubtitle=?,TrackNumber=?,Genre=?,Rating=?,Tagline=?,Description=?,Certificate=?,Collection=?,ReplaygainTrack=?,ReplaygainAlbum=? WHERE ID=?";
+        String sql = "UPDATE MediaElement SET DirectoryType=?,LastScanned=?,Excluded=?,Size=?,LastModified=?,Inode=?,Duration=?,Bitrate=?,Title=?,Artist=?,AlbumArtist=?,Album=?,Year=?,DiscNumber=?,DiscSubtitle=?,TrackNumber=?,Genre=?,Rating=?,Tagline=?,Description=?,Certificate=?,Collection=?,ReplaygainTrack=?,ReplaygainAlbum=? WHERE ID=?";
         
         try {
             mediaDatabase.getJdbcTemplate().batchUpdate(sql, new BatchPreparedStatementSetter() {	
@@ -154,25 +183,27 @@ public class MediaDao {
                     ps.setTimestamp(2, mediaElement.getLastScanned());
                     ps.setBoolean(3, mediaElement.getExcluded());
                     ps.setLong(4, mediaElement.getSize());
-                    ps.setDouble(5, mediaElement.getDuration());
-                    ps.setInt(6, mediaElement.getBitrate());
-                    ps.setString(7, mediaElement.getTitle());
-                    ps.setString(8, mediaElement.getArtist());
-                    ps.setString(9, mediaElement.getAlbumArtist());
-                    ps.setString(10, mediaElement.getAlbum());
-                    ps.setShort(11, mediaElement.getYear());
-                    ps.setShort(12, mediaElement.getDiscNumber());
-                    ps.setString(13, mediaElement.getDiscSubtitle());
-                    ps.setShort(14,mediaElement.getTrackNumber());
-                    ps.setString(15, mediaElement.getGenre());
-                    ps.setFloat(16, mediaElement.getRating());
-                    ps.setString(17, mediaElement.getTagline());
-                    ps.setString(18, mediaElement.getDescription());
-                    ps.setString(19, mediaElement.getCertificate());
-                    ps.setString(20, mediaElement.getCollection());
-                    ps.setFloat(21, mediaElement.getReplaygainTrack());
-                    ps.setFloat(22, mediaElement.getReplaygainAlbum());
-                    ps.setObject(23, mediaElement.getID());
+                    ps.setTimestamp(5, mediaElement.getLastModified());
+                    ps.setObject(6, mediaElement.getInode());
+                    ps.setDouble(7, mediaElement.getDuration());
+                    ps.setInt(8, mediaElement.getBitrate());
+                    ps.setString(9, mediaElement.getTitle());
+                    ps.setString(10, mediaElement.getArtist());
+                    ps.setString(11, mediaElement.getAlbumArtist());
+                    ps.setString(12, mediaElement.getAlbum());
+                    ps.setShort(13, mediaElement.getYear());
+                    ps.setShort(14, mediaElement.getDiscNumber());
+                    ps.setString(15, mediaElement.getDiscSubtitle());
+                    ps.setShort(16,mediaElement.getTrackNumber());
+                    ps.setString(17, mediaElement.getGenre());
+                    ps.setFloat(18, mediaElement.getRating());
+                    ps.setString(19, mediaElement.getTagline());
+                    ps.setString(20, mediaElement.getDescription());
+                    ps.setString(21, mediaElement.getCertificate());
+                    ps.setString(22, mediaElement.getCollection());
+                    ps.setFloat(23, mediaElement.getReplaygainTrack());
+                    ps.setFloat(24, mediaElement.getReplaygainAlbum());
+                    ps.setObject(25, mediaElement.getID());
                 }
 
                 @Override
@@ -189,7 +220,7 @@ public class MediaDao {
     }
     
     public boolean updateMediaElementsByPath(final List<MediaElement> mediaElements) {
-        String sql = "UPDATE MediaElement SET DirectoryType=?,LastScanned=?,Excluded=?,Size=?,Duration=?,Bitrate=?,Title=?,Artist=?,AlbumArtist=?,Album=?,Year=?,DiscNumber=?,DiscSubtitle=?,TrackNumber=?,Genre=?,Rating=?,Tagline=?,Description=?,Certificate=?,Collection=?,ReplaygainTrack=?,ReplaygainAlbum=? WHERE PATH=?";
+        String sql = "UPDATE MediaElement SET DirectoryType=?,LastScanned=?,Excluded=?,Size=?,LastModified=?,Inode=?,Duration=?,Bitrate=?,Title=?,Artist=?,AlbumArtist=?,Album=?,Year=?,DiscNumber=?,DiscSubtitle=?,TrackNumber=?,Genre=?,Rating=?,Tagline=?,Description=?,Certificate=?,Collection=?,ReplaygainTrack=?,ReplaygainAlbum=? WHERE PATH=?";
         
         try {
             mediaDatabase.getJdbcTemplate().batchUpdate(sql, new BatchPreparedStatementSetter() {	
@@ -200,25 +231,27 @@ public class MediaDao {
                     ps.setTimestamp(2, mediaElement.getLastScanned());
                     ps.setBoolean(3, mediaElement.getExcluded());
                     ps.setLong(4, mediaElement.getSize());
-                    ps.setDouble(5, mediaElement.getDuration());
-                    ps.setInt(6, mediaElement.getBitrate());
-                    ps.setString(7, mediaElement.getTitle());
-                    ps.setString(8, mediaElement.getArtist());
-                    ps.setString(9, mediaElement.getAlbumArtist());
-                    ps.setString(10, mediaElement.getAlbum());
-                    ps.setShort(11, mediaElement.getYear());
-                    ps.setShort(12, mediaElement.getDiscNumber());
-                    ps.setString(13, mediaElement.getDiscSubtitle());
-                    ps.setShort(14, mediaElement.getTrackNumber());
-                    ps.setString(15, mediaElement.getGenre());
-                    ps.setFloat(16, mediaElement.getRating());
-                    ps.setString(17, mediaElement.getTagline());
-                    ps.setString(18, mediaElement.getDescription());
-                    ps.setString(19, mediaElement.getCertificate());
-                    ps.setString(20, mediaElement.getCollection());
-                    ps.setFloat(21, mediaElement.getReplaygainTrack());
-                    ps.setFloat(22, mediaElement.getReplaygainAlbum());
-                    ps.setString(23, mediaElement.getPath());
+                    ps.setTimestamp(5, mediaElement.getLastModified());
+                    ps.setObject(6, mediaElement.getInode());
+                    ps.setDouble(7, mediaElement.getDuration());
+                    ps.setInt(8, mediaElement.getBitrate());
+                    ps.setString(9, mediaElement.getTitle());
+                    ps.setString(10, mediaElement.getArtist());
+                    ps.setString(11, mediaElement.getAlbumArtist());
+                    ps.setString(12, mediaElement.getAlbum());
+                    ps.setShort(13, mediaElement.getYear());
+                    ps.setShort(14, mediaElement.getDiscNumber());
+                    ps.setString(15, mediaElement.getDiscSubtitle());
+                    ps.setShort(16, mediaElement.getTrackNumber());
+                    ps.setString(17, mediaElement.getGenre());
+                    ps.setFloat(18, mediaElement.getRating());
+                    ps.setString(19, mediaElement.getTagline());
+                    ps.setString(20, mediaElement.getDescription());
+                    ps.setString(21, mediaElement.getCertificate());
+                    ps.setString(22, mediaElement.getCollection());
+                    ps.setFloat(23, mediaElement.getReplaygainTrack());
+                    ps.setFloat(24, mediaElement.getReplaygainAlbum());
+                    ps.setString(25, mediaElement.getPath());
                 }
 
                 @Override
@@ -256,6 +289,34 @@ public class MediaDao {
         return true;
     }
     
+    public boolean updateIndexEntries(final List<IndexEntry> entries) {
+        String sql = "UPDATE MediaElement SET LastScanned=?,Size=?,LastModified=?,Inode=? WHERE ID=?";
+        
+        try {
+            mediaDatabase.getJdbcTemplate().batchUpdate(sql, new BatchPreparedStatementSetter() {	
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    IndexEntry entry = entries.get(i);
+                    ps.setTimestamp(1, entry.getLastScanned());
+                    ps.setLong(2, entry.getSize());
+                    ps.setTimestamp(3, entry.getLastModified());
+                    ps.setObject(4, entry.getInode());
+                    ps.setObject(5, entry.getID());
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return entries.size();
+                }
+            });
+        } catch (DataAccessException e) {
+            LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Failed to update media index entries!", e);
+            return false;
+        }
+        
+        return true;
+    }
+    
     public List<MediaElement> getMediaElements() {
         try {
             List<MediaElement> mediaElements = mediaDatabase.getJdbcTemplate().query("SELECT * FROM MediaElement", new MediaElementMapper());
@@ -299,6 +360,15 @@ public class MediaDao {
         return null;
     }
     
+    public List<IndexEntry> getMediaElementIndex(String path) {
+        try {
+            List<IndexEntry> entries = mediaDatabase.getJdbcTemplate().query("SELECT ID,Type,Path,Size,LastModified,Inode,LastScanned FROM MediaElement WHERE Path=? OR ParentPath=? OR ParentPath LIKE ?", new IndexEntryMapper(), new Object[] {path, path, path + File.separator + "%"});
+            return entries;
+        } catch (DataAccessException e) {
+            return null;
+        }
+    }
+    
     public List<MediaElement> getMediaElementsByParentPath(String path, Byte type) {
         try {
             List<MediaElement> mediaElements;
@@ -602,6 +672,38 @@ public class MediaDao {
         return true;
     }
     
+    public boolean setVideoStreamDeepScanned(VideoStream stream, Timestamp deepScanned) {
+        try {
+            mediaDatabase.getJdbcTemplate().update("UPDATE VideoStream SET DeepScanned=? WHERE MEID=? AND SID=?",
+                    new Object[]{deepScanned,
+                                 stream.getMediaElementId(),
+                                 stream.getStreamId()
+                    });
+        } catch (InvalidResultSetAccessException e) {
+            return false;
+        } catch (DataAccessException e) {
+            return false;
+        }
+
+        return true;
+    }
+    
+    //
+    // Queues a video stream which has already been deep scanned to be scanned again if it has no key frame index.
+    //
+    public boolean queueKeyFrameIndex(UUID mediaElementId, int streamId) {
+        try {
+            mediaDatabase.getJdbcTemplate().update("UPDATE VideoStream SET DeepScanned=NULL WHERE MEID=? AND SID=? AND DeepScanned IS NOT NULL AND NOT EXISTS (SELECT 1 FROM KeyFrameIndex K WHERE K.MEID=VideoStream.MEID AND K.SID=VideoStream.SID)",
+                    new Object[]{mediaElementId, streamId});
+        } catch (InvalidResultSetAccessException e) {
+            return false;
+        } catch (DataAccessException e) {
+            return false;
+        }
+
+        return true;
+    }
+    
     public boolean removeAllVideoStreams() {
         try {
             mediaDatabase.getJdbcTemplate().update("DELETE FROM VideoStream");
@@ -640,7 +742,8 @@ public class MediaDao {
     public List<VideoStream> getIncompleteVideoStreams() {
         try {
             List<VideoStream> videoStreams;
-            videoStreams = mediaDatabase.getJdbcTemplate().query("SELECT * FROM VideoStream WHERE MaxBitrate=0 OR GOP=0     ", new VideoStreamMapper());
+            videoStreams = mediaDatabase.getJdbcTemplate().query("SELECT * FROM VideoStream WHERE DeepScanned IS NULL AND (COALESCE(MaxBitrate,0)=0 OR COALESCE(GOP,0)=0 OR NOT EXISTS (SELECT 1 FROM KeyFrameIndex K WHERE K.MEID=VideoStream.MEID AND K.SID=VideoStream.SID)) "
+                                                               + "ORDER BY CASE WHEN COALESCE(MaxBitrate,0)=0 AND COALESCE(GOP,0)=0 THEN 0 WHEN COALESCE(MaxBitrate,0)=0 THEN 1 WHEN COALESCE(GOP,0)=0 THEN 2 ELSE 3 END", new VideoStreamMapper());
             
             return videoStreams;
         } catch (DataAccessException e) {
@@ -648,6 +751,41 @@ public class MediaDao {
         }
     }
     
+    //
+    // Key Frame Index
+    //
+    
+    public boolean setKeyFrameIndex(VideoStream stream, KeyFrameIndex index) {
+        try {
+            mediaDatabase.getJdbcTemplate().update("MERGE INTO KeyFrameIndex (MEID,SID,Data) KEY (MEID,SID) VALUES (?,?,?)",
+                    new Object[]{stream.getMediaElementId(),
+                                 stream.getStreamId(),
+                                 index.encode()
+                    });
+        } catch (InvalidResultSetAccessException e) {
+            return false;
+        } catch (DataAccessException e) {
+            return false;
+        }
+
+        return true;
+    }
+    
+    public KeyFrameIndex getKeyFrameIndex(UUID mediaElementId, int streamId) {
+        try {
+            List<byte[]> data = mediaDatabase.getJdbcTemplate().query("SELECT Data FROM KeyFrameIndex WHERE MEID=? AND SID=?",
+                    (rs, rowNum) -> rs.getBytes("Data"), new Object[] {mediaElementId, streamId});
+            
+            if(data == null || data.isEmpty()) {
+                return null;
+            }
+            
+            return KeyFrameIndex.decode(data.get(0));
+        } catch (DataAccessException e) {
+            return null;
+        }
+    }
+    
     //
     // Audio Stream
     //
@@ -846,7 +984,7 @@ public class MediaDao {
     }
     
     public void removeDeletedPlaylists(String path, Timestamp lastScanned) {            
-        mediaDatabase.getJdbcTemplate().update("DELETE FROM Playlist WHERE ParentPath LIKE ? AND LastScanned != ?", new Object[] {path + "%",lastScanned});
+        mediaDatabase.getJdbcTemplate().update("DELETE FROM Playlist WHERE (ParentPath=? OR ParentPath LIKE ?) AND LastScanned != ?", new Object[] {path, path + File.separator + "%", lastScanned});
     }
     
     public boolean updatePlaylist(Playlist playlist){
@@ -26,12 +26,16 @@ package com.scooter1556.sms.server.database;
 import com.scooter1556.sms.server.exception.DatabaseException;
 import com.scooter1556.sms.server.utilities.DatabaseUtils;
 import javax.sql.DataSource;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-public class Database {
+public class Database implements DisposableBean {
     
     DataSource dataSource = null;
-    JdbcTemplate jdbcTemplate;
+    JdbcTemplate jdbcTemplate = null;
+    TransactionTemplate transactionTemplate = null;
     
     String db;
     int version;
@@ -48,6 +52,7 @@ public class Database {
         // Database doesn't exist
         if(currentVersion == -1) {
             dataSource = DatabaseUtils.getDataSource(db, version);
+            createTemplates();
             create();
             return;
         }
@@ -63,6 +68,7 @@ public class Database {
         if(currentVersion < version) {
             DatabaseUtils.createNewDatabaseFile(db, type, currentVersion, version);
             dataSource = DatabaseUtils.getDataSource(db, version);
+            createTemplates();
             upgrade(currentVersion, version);
         }
 
@@ -70,12 +76,14 @@ public class Database {
         else if(currentVersion > version) {
             DatabaseUtils.createNewDatabaseFile(db, type, currentVersion, version);
             dataSource = DatabaseUtils.getDataSource(db, version);
+            createTemplates();
             downgrade(currentVersion, version);
         }
 
         // If versions match simply load the database
         else if(currentVersion == version) {
             dataSource = DatabaseUtils.getDataSource(db, version);
+            createTemplates();
         }
         
         else {
@@ -83,6 +91,12 @@ public class Database {
         }
     }
     
+    // Create templates for the current data source
+    private void createTemplates() {
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    }
+    
     public void create() {
         // To be overridden
     }
@@ -96,11 +110,26 @@ public class Database {
     }
     
     /**
-     * Returns a JDBC template for performing database operations.
+     * Returns the shared JDBC template for performing database operations.
      *
      * @return A JDBC template.
      */
     public JdbcTemplate getJdbcTemplate() {
-        return new JdbcTemplate(dataSource);
+        return jdbcTemplate;
+    }
+    
+    /**
+     * Returns a transaction template for grouping operations performed with
+     * the shared JDBC template into a single transaction.
+     *
+     * @return A transaction template.
+     */
+    public TransactionTemplate getTransactionTemplate() {
+        return transactionTemplate;
+    }
+    
+    @Override
+    public void destroy() {
+        DatabaseUtils.closeDataSource(db, version);
     }
 }
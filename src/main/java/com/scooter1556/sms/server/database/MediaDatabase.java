@@ -39,7 +39,7 @@ public class MediaDatabase extends Database {
     private static final String CLASS_NAME = "MediaDatabase";
     
     public static final String DB_NAME = "Media";
-    public static final int DB_VERSION = 6;
+    public static final int DB_VERSION = 9;
     
     public MediaDatabase() {
         super(DB_NAME, DB_VERSION);   
@@ -71,6 +71,8 @@ public class MediaDatabase extends Database {
                     + "Excluded BOOLEAN DEFAULT 0 NOT NULL,"
                     + "Format INT,"
                     + "Size BIGINT,"
+                    + "LastModified TIMESTAMP,"
+                    + "Inode BIGINT,"
                     + "Duration DOUBLE,"
                     + "Bitrate INT,"
                     + "Title VARCHAR NOT NULL,"
@@ -108,9 +110,18 @@ public class MediaDatabase extends Database {
                     + "Language VARCHAR,"
                     + "Default BOOLEAN DEFAULT 0 NOT NULL,"
                     + "Forced BOOLEAN DEFAULT 0 NOT NULL,"
+                    + "DeepScanned TIMESTAMP,"
                     + "PRIMARY KEY (MEID,SID),"
                     + "FOREIGN KEY (MEID) REFERENCES MediaElement (ID) ON DELETE CASCADE)");
             
+            // Video Key Frames
+            getJdbcTemplate().execute("CREATE TABLE IF NOT EXISTS KeyFrameIndex ("
+                    + "MEID UUID NOT NULL,"
+                    + "SID INT NOT NULL,"
+                    + "Data BLOB NOT NULL,"
+                    + "PRIMARY KEY (MEID,SID),"
+                    + "FOREIGN KEY (MEID,SID) REFERENCES VideoStream (MEID,SID) ON DELETE CASCADE)");
+            
             // Audio Streams
             getJdbcTemplate().execute("CREATE TABLE IF NOT EXISTS AudioStream ("
                     + "MEID UUID NOT NULL,"
@@ -186,6 +197,8 @@ public class MediaDatabase extends Database {
             mediaElement.setExcluded(rs.getBoolean("Excluded"));
             mediaElement.setFormat(rs.getInt("Format"));
             mediaElement.setSize(rs.getLong("Size"));
+            mediaElement.setLastModified(rs.getTimestamp("LastModified"));
+            mediaElement.setInode((Long)rs.getObject("Inode"));
             mediaElement.setDuration(rs.getDouble("Duration"));
             mediaElement.setBitrate(rs.getInt("Bitrate"));
             mediaElement.setTitle(rs.getString("Title"));
@@ -209,6 +222,22 @@ public class MediaDatabase extends Database {
         }
     }
     
+    public static final class IndexEntryMapper implements RowMapper {
+        @Override
+        public MediaElement.IndexEntry mapRow(ResultSet rs, int rowNum) throws SQLException {
+            MediaElement.IndexEntry entry = new MediaElement.IndexEntry();
+            entry.setID((UUID)rs.getObject("ID"));
+            entry.setType(rs.getByte("Type"));
+            entry.setPath(rs.getString("Path"));
+            entry.setSize(rs.getLong("Size"));
+            entry.setLastModified(rs.getTimestamp("LastModified"));
+            entry.setInode((Long)rs.getObject("Inode"));
+            entry.setLastScanned(rs.getTimestamp("LastScanned"));
+            
+            return entry;
+        }
+    }
+    
     public static final class VideoStreamMapper implements RowMapper {
         @Override
         public MediaElement.VideoStream mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -303,9 +332,23 @@ public class MediaDatabase extends Database {
             getJdbcTemplate().execute("DROP TABLE IF EXISTS SubtitleStream");
         }
         
-        if(newVersion == 6) {
-            getJdbcTemplate().update("ALTER TABLE MediaElement ADD ReplaygainTrack REAL");
-            getJdbcTemplate().update("ALTER TABLE MediaElement ADD ReplaygainAlbum REAL");
+        if(oldVersion < 6 && newVersion >= 6) {
+            getJdbcTemplate().update("ALTER TABLE MediaElement ADD IF NOT EXISTS ReplaygainTrack REAL");
+            getJdbcTemplate().update("ALTER TABLE MediaElement ADD IF NOT EXISTS ReplaygainAlbum REAL");
+        }
+        
+        if(oldVersion < 7 && newVersion >= 7) {
+            getJdbcTemplate().update("ALTER TABLE MediaElement ADD IF NOT EXISTS LastModified TIMESTAMP");
+            getJdbcTemplate().update("ALTER TABLE MediaElement ADD IF NOT EXISTS Inode BIGINT");
+        }
+        
+        if(oldVersion < 8 && newVersion >= 8) {
+            getJdbcTemplate().update("ALTER TABLE VideoStream ADD IF NOT EXISTS DeepScanned TIMESTAMP");
+        }
+        
+        // Streams with complete statistics only need key frame indexes, these are queued when each stream is played
+        if(oldVersion < 9 && newVersion >= 9) {
+            getJdbcTemplate().update("UPDATE VideoStream SET DeepScanned=CURRENT_TIMESTAMP WHERE DeepScanned IS NULL AND COALESCE(MaxBitrate,0)>0 AND COALESCE(GOP,0)>0");
         }
         
         create();
@@ -316,6 +359,7 @@ public class MediaDatabase extends Database {
         LogService.getInstance().addLogEntry(LogService.Level.INFO, CLASS_NAME, "Downgrading database from version " + oldVersion + " to " + newVersion, null);
         
         // Delete table and re-create
+        getJdbcTemplate().execute("DROP TABLE IF EXISTS KeyFrameIndex");
         getJdbcTemplate().execute("DROP TABLE IF EXISTS MediaElement");
         getJdbcTemplate().execute("DROP TABLE IF EXISTS VideoStream");
         getJdbcTemplate().execute("DROP TABLE IF EXISTS AudioStream");
@@ -0,0 +1,141 @@
+/*
+ * Author: Scott Ware <scoot.software@gmail.com>
+ * Copyright (c) 2015 Scott Ware
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.scooter1556.sms.server.domain;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import java.io.Serializable;
+
+@ApiModel(description = "Database connection pool statistics")
+public class DatabaseStats implements Serializable {
+    
+    @ApiModelProperty(value = "Name of the database", example = "Media")
+    private String name;
+    
+    @ApiModelProperty(value = "Number of connections currently in use", example = "2")
+    private int active;
+    
+    @ApiModelProperty(value = "Number of idle connections in the pool", example = "8")
+    private int idle;
+    
+    @ApiModelProperty(value = "Number of threads waiting for a connection", example = "0")
+    private int waiting;
+    
+    @ApiModelProperty(value = "Total number of connections acquired from the pool", example = "15423")
+    private long acquired;
+    
+    @ApiModelProperty(value = "Average time spent waiting for a connection in microseconds", example = "12")
+    private long averageWait;
+    
+    @ApiModelProperty(value = "Longest time spent waiting for a connection in microseconds", example = "2035")
+    private long maxWait;
+    
+    @ApiModelProperty(value = "Number of requests which timed out waiting for a connection", example = "0")
+    private long timeouts;
+
+    public DatabaseStats() {};
+    
+    public DatabaseStats(String name, int active, int idle, int waiting, long acquired, long averageWait, long maxWait, long timeouts)
+    {
+        this.name = name;
+        this.active = active;
+        this.idle = idle;
+        this.waiting = waiting;
+        this.acquired = acquired;
+        this.averageWait = averageWait;
+        this.maxWait = maxWait;
+        this.timeouts = timeouts;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format(
+                "Database[Name=%s, Active=%s, Idle=%s, Waiting=%s, Acquired=%s, Average Wait (us)=%s, Max Wait (us)=%s, Timeouts=%s]",
+                name == null ? "N/A" : name, String.valueOf(active), String.valueOf(idle), String.valueOf(waiting), String.valueOf(acquired), String.valueOf(averageWait), String.valueOf(maxWait), String.valueOf(timeouts));
+    }
+
+    public String getName() {
+        return name;
+    }
+    
+    public void setName(String name) {
+        this.name = name;
+    }
+    
+    public int getActive() {
+        return active;
+    }
+    
+    public void setActive(int active) {
+        this.active = active;
+    }
+    
+    public int getIdle() {
+        return idle;
+    }
+    
+    public void setIdle(int idle) {
+        this.idle = idle;
+    }
+    
+    public int getWaiting() {
+        return waiting;
+    }
+    
+    public void setWaiting(int waiting) {
+        this.waiting = waiting;
+    }
+    
+    public long getAcquired() {
+        return acquired;
+    }
+    
+    public void setAcquired(long acquired) {
+        this.acquired = acquired;
+    }
+    
+    public long getAverageWait() {
+        return averageWait;
+    }
+    
+    public void setAverageWait(long averageWait) {
+        this.averageWait = averageWait;
+    }
+    
+    public long getMaxWait() {
+        return maxWait;
+    }
+    
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+    
+    public long getTimeouts() {
+        return timeouts;
+    }
+    
+    public void setTimeouts(long timeouts) {
+        this.timeouts = timeouts;
+    }
+}
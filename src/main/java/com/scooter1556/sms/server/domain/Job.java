@@ -37,6 +37,7 @@ public class Job implements Serializable {
     private Timestamp lastActivity;
     private long bytesTransferred = 0;
     private TranscodeProfile profile;
+    private volatile boolean ended = false;
 
     public Job(UUID sid) {
         // Set IDs
@@ -130,6 +131,14 @@ public class Job implements Serializable {
         this.profile = profile;
     }
 
+    public boolean isEnded() {
+        return ended;
+    }
+    
+    public void setEnded(boolean ended) {
+        this.ended = ended;
+    }
+
     public static class JobType {
         public static final byte AUDIO_STREAM = 0;
         public static final byte VIDEO_STREAM = 1;
@@ -0,0 +1,195 @@
+/*
+ * Author: Scott Ware <scoot.software@gmail.com>
+ * Copyright (c) 2015 Scott Ware
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.scooter1556.sms.server.domain;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Presentation timestamps and byte positions of the key frames in a video stream.
+ *
+ * Stored as variable length deltas so a feature length film takes a few kilobytes.
+ */
+public class KeyFrameIndex {
+
+    // Milliseconds
+    private final long[] timestamps;
+
+    // Bytes, -1 if not known
+    private final long[] positions;
+
+    public KeyFrameIndex(long[] timestamps, long[] positions) {
+        this.timestamps = timestamps;
+        this.positions = positions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KeyFrameIndex[Key Frames=%s]", timestamps.length);
+    }
+
+    public int size() {
+        return timestamps.length;
+    }
+
+    // Returns the timestamp of a key frame in seconds
+    public double getTimestamp(int index) {
+        return timestamps[index] / 1000.0;
+    }
+
+    public long getPosition(int index) {
+        return positions[index];
+    }
+
+    //
+    // Returns the index of the last key frame at or before a time (seconds), or -1 if there is none.
+    //
+    public int floor(double time) {
+        int index = Arrays.binarySearch(timestamps, Math.round(time * 1000));
+        return index >= 0 ? index : -index - 2;
+    }
+
+    //
+    // Returns the index of the key frame closest to a time (seconds), or -1 if the index is empty.
+    //
+    public int nearest(double time) {
+        int index = floor(time);
+
+        if(index < timestamps.length - 1 && (index < 0 || time - getTimestamp(index) > getTimestamp(index + 1) - time)) {
+            index++;
+        }
+
+        return index;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(timestamps.length * 4 + 4);
+
+        writeVarLong(data, timestamps.length);
+
+        long timestamp = 0, position = 0;
+
+        for(int i = 0; i < timestamps.length; i++) {
+            writeVarLong(data, zigzag(timestamps[i] - timestamp));
+            writeVarLong(data, zigzag(positions[i] - position));
+            timestamp = timestamps[i];
+            position = positions[i];
+        }
+
+        return data.toByteArray();
+    }
+
+    public static KeyFrameIndex decode(byte[] data) {
+        int[] offset = {0};
+        int count = (int) readVarLong(data, offset);
+
+        long[] timestamps = new long[count];
+        long[] positions = new long[count];
+        long timestamp = 0, position = 0;
+
+        for(int i = 0; i < count; i++) {
+            timestamp += unzigzag(readVarLong(data, offset));
+            position += unzigzag(readVarLong(data, offset));
+            timestamps[i] = timestamp;
+            positions[i] = position;
+        }
+
+        return new KeyFrameIndex(timestamps, positions);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream data, long value) {
+        while((value & ~0x7FL) != 0) {
+            data.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        data.write((int) value);
+    }
+
+    private static long readVarLong(byte[] data, int[] offset) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            b = data[offset[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+
+        return value;
+    }
+
+    /**
+     * Collects key frames in stream order.
+     *
+     * Timestamps are stored relative to the start time of the container so
+     * they match seek positions for inputs which do not start at zero.
+     */
+    public static class Builder {
+        private long[] timestamps = new long[1024];
+        private long[] positions = new long[1024];
+        private final long origin;
+        private int count = 0;
+
+        // Start time of the container in seconds
+        public Builder(double origin) {
+            this.origin = Math.round(origin * 1000);
+        }
+
+        public void add(double time, long position) {
+            long timestamp = Math.round(time * 1000) - origin;
+
+            // Ignore key frames which are out of order or duplicated
+            if(timestamp < 0 || (count > 0 && timestamp <= timestamps[count - 1])) {
+                return;
+            }
+
+            if(count == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+
+            timestamps[count] = timestamp;
+            positions[count] = position;
+            count++;
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        public KeyFrameIndex build() {
+            return new KeyFrameIndex(Arrays.copyOf(timestamps, count), Arrays.copyOf(positions, count));
+        }
+    }
+}
@@ -71,6 +71,12 @@ public class MediaElement implements Serializable {
     @ApiModelProperty(hidden = true)
     private Long size = 0L;
     
+    @ApiModelProperty(hidden = true)
+    private Timestamp lastModified;
+    
+    @ApiModelProperty(hidden = true)
+    private Long inode;
+    
     @ApiModelProperty(value = "Duration (seconds)", readOnly = true, accessMode = ApiModelProperty.AccessMode.READ_ONLY, example = "234")
     private Double duration = 0d;
     
@@ -355,6 +361,24 @@ public class MediaElement implements Serializable {
         this.size = size;
     }
     
+    @JsonIgnore
+    public Timestamp getLastModified() {
+        return lastModified;
+    }
+    
+    public void setLastModified(Timestamp lastModified) {
+        this.lastModified = lastModified;
+    }
+    
+    @JsonIgnore
+    public Long getInode() {
+        return inode;
+    }
+    
+    public void setInode(Long inode) {
+        this.inode = inode;
+    }
+    
     public Double getDuration() {
         return duration;
     }
@@ -837,6 +861,95 @@ public class MediaElement implements Serializable {
         }
     }
 
+    public static class IndexEntry {
+        UUID id;
+        Byte type;
+        String path;
+        Long size, inode;
+        Timestamp lastModified, lastScanned;
+        
+        public IndexEntry() {};
+        
+        public IndexEntry(UUID id, Byte type, String path, Long size, Timestamp lastModified, Long inode, Timestamp lastScanned) {
+            this.id = id;
+            this.type = type;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+            this.lastScanned = lastScanned;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(
+                        "{ID=%s, Type=%s, Path=%s, Size=%s, Last Modified=%s, Inode=%s, Last Scanned=%s}",
+                        id == null ? "N/A" : id.toString(),
+                        type == null ? "N/A" : type.toString(),
+                        path == null ? "N/A" : path,
+                        size == null ? "N/A" : size.toString(),
+                        lastModified == null ? "N/A" : lastModified.toString(),
+                        inode == null ? "N/A" : inode.toString(),
+                        lastScanned == null ? "N/A" : lastScanned.toString());
+        }
+        
+        public UUID getID() {
+            return id;
+        }
+        
+        public void setID(UUID id) {
+            this.id = id;
+        }
+        
+        public Byte getType() {
+            return type;
+        }
+        
+        public void setType(Byte type) {
+            this.type = type;
+        }
+        
+        public String getPath() {
+            return path;
+        }
+        
+        public void setPath(String path) {
+            this.path = path;
+        }
+        
+        public Long getSize() {
+            return size;
+        }
+        
+        public void setSize(Long size) {
+            this.size = size;
+        }
+        
+        public Timestamp getLastModified() {
+            return lastModified;
+        }
+        
+        public void setLastModified(Timestamp lastModified) {
+            this.lastModified = lastModified;
+        }
+        
+        public Long getInode() {
+            return inode;
+        }
+        
+        public void setInode(Long inode) {
+            this.inode = inode;
+        }
+        
+        public Timestamp getLastScanned() {
+            return lastScanned;
+        }
+        
+        public void setLastScanned(Timestamp lastScanned) {
+            this.lastScanned = lastScanned;
+        }
+    }
+
     public static class MediaElementType {
         public static final byte NONE = 0;
         public static final byte AUDIO = 1;
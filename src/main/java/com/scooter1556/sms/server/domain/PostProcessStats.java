@@ -0,0 +1,117 @@
+/*
+ * Author: Scott Ware <scoot.software@gmail.com>
+ * Copyright (c) 2015 Scott Ware
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.scooter1556.sms.server.domain;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import java.io.Serializable;
+
+@ApiModel(description = "Segment post-processing statistics")
+public class PostProcessStats implements Serializable {
+
+    @ApiModelProperty(value = "Maximum number of segments post-processed at once", example = "4")
+    private int threads;
+
+    @ApiModelProperty(value = "Number of segments being post-processed", example = "2")
+    private int active;
+
+    @ApiModelProperty(value = "Number of segments waiting to be post-processed", example = "6")
+    private int queued;
+
+    @ApiModelProperty(value = "Number of segments post-processed", example = "18250")
+    private long completed;
+
+    @ApiModelProperty(value = "Average time in milliseconds segments wait before post-processing starts", example = "35")
+    private long averageWait;
+
+    @ApiModelProperty(value = "Average time in milliseconds taken to post-process a segment", example = "120")
+    private long averageTime;
+
+    public PostProcessStats() {};
+
+    public PostProcessStats(int threads, int active, int queued, long completed, long averageWait, long averageTime)
+    {
+        this.threads = threads;
+        this.active = active;
+        this.queued = queued;
+        this.completed = completed;
+        this.averageWait = averageWait;
+        this.averageTime = averageTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "PostProcess[Threads=%s, Active=%s, Queued=%s, Completed=%s, Average Wait=%s, Average Time=%s]",
+                String.valueOf(threads), String.valueOf(active), String.valueOf(queued), String.valueOf(completed), String.valueOf(averageWait), String.valueOf(averageTime));
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    public void setActive(int active) {
+        this.active = active;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public void setQueued(int queued) {
+        this.queued = queued;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(long completed) {
+        this.completed = completed;
+    }
+
+    public long getAverageWait() {
+        return averageWait;
+    }
+
+    public void setAverageWait(long averageWait) {
+        this.averageWait = averageWait;
+    }
+
+    public long getAverageTime() {
+        return averageTime;
+    }
+
+    public void setAverageTime(long averageTime) {
+        this.averageTime = averageTime;
+    }
+}
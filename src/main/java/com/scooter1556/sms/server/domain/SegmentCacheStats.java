@@ -0,0 +1,111 @@
+/*
+ * Author: Scott Ware <scoot.software@gmail.com>
+ * Copyright (c) 2015 Scott Ware
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.scooter1556.sms.server.domain;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import java.io.Serializable;
+
+@ApiModel(description = "Segment cache statistics")
+public class SegmentCacheStats implements Serializable {
+    
+    @ApiModelProperty(value = "Number of segments in the cache", example = "1250")
+    private int count;
+    
+    @ApiModelProperty(value = "Size of cached segments in bytes", example = "2147483648")
+    private long size;
+    
+    @ApiModelProperty(value = "Maximum size of the cache in bytes", example = "4294967296")
+    private long capacity;
+    
+    @ApiModelProperty(value = "Number of segment requests served from the cache", example = "5230")
+    private long hits;
+    
+    @ApiModelProperty(value = "Number of segment requests not found in the cache", example = "12840")
+    private long misses;
+
+    public SegmentCacheStats() {};
+    
+    public SegmentCacheStats(int count, long size, long capacity, long hits, long misses)
+    {
+        this.count = count;
+        this.size = size;
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format(
+                "SegmentCache[Count=%s, Size=%s, Capacity=%s, Hits=%s, Misses=%s, Hit Rate=%s]",
+                String.valueOf(count), String.valueOf(size), String.valueOf(capacity), String.valueOf(hits), String.valueOf(misses), String.valueOf(getHitRate()));
+    }
+
+    public int getCount() {
+        return count;
+    }
+    
+    public void setCount(int count) {
+        this.count = count;
+    }
+    
+    public long getSize() {
+        return size;
+    }
+    
+    public void setSize(long size) {
+        this.size = size;
+    }
+    
+    public long getCapacity() {
+        return capacity;
+    }
+    
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+    
+    public long getHits() {
+        return hits;
+    }
+    
+    public void setHits(long hits) {
+        this.hits = hits;
+    }
+    
+    public long getMisses() {
+        return misses;
+    }
+    
+    public void setMisses(long misses) {
+        this.misses = misses;
+    }
+    
+    @ApiModelProperty(value = "Fraction of segment requests served from the cache", example = "0.29")
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
@@ -1,18 +1,20 @@
 package com.scooter1556.sms.server.domain;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 @JsonInclude(JsonInclude.Include.NON_DEFAULT)
 public class Session implements Comparable {
     
     private final UUID id;    
     private final String username;    
-    private ClientProfile profile;    
-    private final List<Job> jobs = new ArrayList<>();
+    private ClientProfile profile;
+    
+    // Jobs indexed by ID and by media element ID
+    private final Map<UUID, Job> jobs = new ConcurrentHashMap<>();
+    private final Map<UUID, Job> mediaElementJobs = new ConcurrentHashMap<>();
 
     public Session(UUID id, String username, ClientProfile profile) {
         this.id = id;
@@ -45,11 +47,12 @@ public class Session implements Comparable {
     }
     
     public void addJob(Job job) {
-        jobs.add(job);
+        jobs.put(job.getId(), job);
+        mediaElementJobs.put(job.getMediaElement().getID(), job);
     }
     
     public Job[] getJobs() {
-        return jobs.toArray(new Job[jobs.size()]);
+        return jobs.values().toArray(new Job[0]);
     }
     
     public int getNumJobs() {
@@ -57,49 +60,34 @@ public class Session implements Comparable {
     }
     
     public Job getJobById(UUID id) {
-        for(Job job : jobs) {
-            if(job.getId().compareTo(id) == 0) {
-                return job;
-            }
-        }
-        
-        return null;
+        return jobs.get(id);
     }
-     
-    public void removeJobById(UUID id) {
-        Iterator<Job> iter = jobs.iterator();
-
-        while (iter.hasNext()) {
-            Job job = iter.next();
-
-            if(job.getId().compareTo(id) == 0) {
-                iter.remove();
-                break;
-            }
+    
+    //
+    // Returns the removed job, or null if it has already been removed.
+    //
+    public Job removeJobById(UUID id) {
+        Job job = jobs.remove(id);
+        
+        if(job != null) {
+            mediaElementJobs.remove(job.getMediaElement().getID(), job);
         }
+        
+        return job;
     }
     
     public Job getJobByMediaElementId(UUID id) {
-        for(Job job : jobs) {
-            if(job.getMediaElement().getID().compareTo(id) == 0) {
-                return job;
-            }
-        }
-        
-        return null;
+        return mediaElementJobs.get(id);
     }
      
-    public void removeJobByMediaElementId(UUID id) {
-        Iterator<Job> iter = jobs.iterator();
-
-        while (iter.hasNext()) {
-            Job job = iter.next();
-
-            if(job.getMediaElement().getID().compareTo(id) == 0) {
-                iter.remove();
-                break;
-            }
+    public Job removeJobByMediaElementId(UUID id) {
+        Job job = mediaElementJobs.remove(id);
+        
+        if(job != null) {
+            jobs.remove(job.getId(), job);
         }
+        
+        return job;
     }
 
     @Override
@@ -18,13 +18,14 @@ public class TranscodeProfile {
     private Integer videoStream, audioStream, subtitleStream;
     private Integer offset = 0;
     private Integer segmentDuration;
+    private int initialSegmentDuration = 0, initialSegmentCount = 0;
     private boolean active = true, packedAudio = false, tonemapping = false;
 
     public TranscodeProfile() {}
 
     @Override
     public String toString() {
-        return String.format("TranscodeProfile[Type=%s, Muxer=%s, Mime Type=%s, Max Resolution=%s, Video Transcodes=%s, Audio Transcodes=%s, Subtitle Transcodes=%s, Video Stream=%s, Audio Stream=%s, Subtitle Stream=%s, Offset=%s, Segment Duration=%s, Packed Audio=%s, Tonemapping=%s",
+        return String.format("TranscodeProfile[Type=%s, Muxer=%s, Mime Type=%s, Max Resolution=%s, Video Transcodes=%s, Audio Transcodes=%s, Subtitle Transcodes=%s, Video Stream=%s, Audio Stream=%s, Subtitle Stream=%s, Offset=%s, Segment Duration=%s, Initial Segment Duration=%s, Initial Segment Count=%s, Packed Audio=%s, Tonemapping=%s",
                 String.valueOf(type),
                 muxer == null ? "null" : muxer.toString(),
                 mimeType == null ? "null" : mimeType,
@@ -37,6 +38,32 @@ public class TranscodeProfile {
                 subtitleStream == null ? "null" : subtitleStream.toString(),
                 offset == null ? "null" : offset.toString(),
                 segmentDuration == null ? "null" : segmentDuration,
+                String.valueOf(initialSegmentDuration),
+                String.valueOf(initialSegmentCount),
+                Boolean.toString(packedAudio),
+                Boolean.toString(tonemapping)
+                );
+    }
+
+    //
+    // Describes the output of the profile regardless of where the transcode starts.
+    // Profiles with the same output key produce interchangeable segments.
+    //
+    public String getOutputKey() {
+        return String.format("%s|%s|%s|%s|%s|%s|%s|%s|%s|%s|%s|%s|%s|%s|%s",
+                String.valueOf(type),
+                muxer == null ? "null" : muxer.toString(),
+                mimeType == null ? "null" : mimeType,
+                maxResolution == null ? "null" : String.format("%dx%d", maxResolution.width, maxResolution.height),
+                videoTranscodes == null ? "null" : Arrays.toString(videoTranscodes),
+                audioTranscodes == null ? "null" : Arrays.toString(audioTranscodes),
+                subtitleTranscodes == null ? "null" : Arrays.toString(subtitleTranscodes),
+                videoStream == null ? "null" : videoStream.toString(),
+                audioStream == null ? "null" : audioStream.toString(),
+                subtitleStream == null ? "null" : subtitleStream.toString(),
+                segmentDuration == null ? "null" : segmentDuration,
+                String.valueOf(initialSegmentDuration),
+                String.valueOf(initialSegmentCount),
                 Boolean.toString(packedAudio),
                 Boolean.toString(tonemapping)
                 );
@@ -139,6 +166,46 @@ public class TranscodeProfile {
     public void setSegmentDuration(int segmentDuration) {
         this.segmentDuration = segmentDuration;
     }
+
+    public int getInitialSegmentDuration() {
+        return initialSegmentDuration;
+    }
+
+    public void setInitialSegmentDuration(int initialSegmentDuration) {
+        this.initialSegmentDuration = initialSegmentDuration;
+    }
+
+    public int getInitialSegmentCount() {
+        return initialSegmentCount;
+    }
+
+    public void setInitialSegmentCount(int initialSegmentCount) {
+        this.initialSegmentCount = initialSegmentCount;
+    }
+
+    //
+    // Returns the start time in seconds of a segment, allowing for shorter initial segments.
+    //
+    public int getSegmentStart(int num) {
+        if(num < initialSegmentCount) {
+            return num * initialSegmentDuration;
+        }
+
+        return (initialSegmentCount * initialSegmentDuration) + ((num - initialSegmentCount) * segmentDuration);
+    }
+
+    //
+    // Returns the number of the segment containing a time in seconds.
+    //
+    public int getSegmentNum(double time) {
+        int ramp = initialSegmentCount * initialSegmentDuration;
+
+        if(time < ramp) {
+            return (int) (time / initialSegmentDuration);
+        }
+
+        return initialSegmentCount + (int) ((time - ramp) / segmentDuration);
+    }
     
     public boolean isActive() {
         return active;
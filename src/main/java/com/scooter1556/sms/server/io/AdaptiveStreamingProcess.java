@@ -30,44 +30,85 @@ import com.scooter1556.sms.server.domain.SubtitleTranscode;
 import com.scooter1556.sms.server.domain.TranscodeProfile;
 import com.scooter1556.sms.server.domain.Transcoder;
 import com.scooter1556.sms.server.media.FragmentedMp4Builder;
+import com.scooter1556.sms.server.media.MpegTsBuilder;
 import com.scooter1556.sms.server.service.LogService;
 import com.scooter1556.sms.server.service.LogService.Level;
 import com.scooter1556.sms.server.service.SettingsService;
 import com.scooter1556.sms.server.utilities.MediaUtils;
 import com.scooter1556.sms.server.utilities.TranscodeUtils;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.input.Tailer;
-import org.apache.commons.io.input.TailerListener;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.SystemUtils;
 import org.apache.tomcat.util.http.fileupload.FileUtils;
-import org.apache.commons.io.input.TailerListenerAdapter;
-import org.mp4parser.Container;
 
 public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
 
     private static final String CLASS_NAME = "AdaptiveStreamingProcess";
 
+    // Number of segments waiting for post-processing at which the transcoder is paused
+    private static final int MAX_QUEUED_SEGMENTS = 8;
+
+    // Number of segments beyond the last produced which are close enough to wait for rather than restart
+    private static final int SEEK_WINDOW = 3;
+
+    // Signals are sent to transcoders in order from a single thread so segment tracking and requests never wait on them
+    private static final ExecutorService SIGNALLER = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "ProcessSignaller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     File streamDirectory = null;
-    int segmentNum = 0;
+    String key = null;
+    String streamKey = null;
     TranscodeProfile profile = null;
     MediaElement mediaElement = null;
     Transcoder transcoder = null;
 
-    Tailer tailer = null;
-    ExecutorService postProcessExecutor = null;
+    // Segments submitted for post-processing which have not yet finished
+    private final AtomicInteger queued = new AtomicInteger();
+    
+    // Jobs attached to this process and the last segment requested by each
+    private final Map<UUID, Integer> viewers = new ConcurrentHashMap<>();
+
+    // Requests waiting for segments to be finalised, keyed by file name
+    private final Map<String, PendingSegment> pendingSegments = new ConcurrentHashMap<>();
 
     int count = 0;
 
+    // First segment and highest segment number produced by the transcoder
+    private volatile int startNum = 0;
+    private volatile int producedNum = -1;
+
+    // Segments which have been post-processed and are kept while the process is suspended
+    private final Set<Integer> finalisedSegments = ConcurrentHashMap.newKeySet();
+
+    // Raw segments waiting for or undergoing post-processing, which continues while the process is suspended
+    private final Set<Integer> queuedSegments = ConcurrentHashMap.newKeySet();
+
+    // Segment requested last before the process was suspended
+    private int resumeNum = 0;
+
+    // Set while the transcoder is stopped because it is too far ahead of its viewers
+    private boolean throttled = false;
+
     private boolean suspended = false;
 
+    // Thread running the current transcode, replaced each time the process is initialised
+    private volatile Thread runner = null;
+
     public AdaptiveStreamingProcess() {};
 
     public AdaptiveStreamingProcess(UUID id) {
@@ -75,111 +116,161 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
     }
 
     public void initialise() {
-        // Stop transcode process if one is already running
-        if(process != null) {
-            process.destroy();
+        // A stopped transcoder must be resumed before it can exit
+        unthrottle();
+
+        // Segments finalised before suspending are kept when resuming
+        boolean resuming = suspended;
+
+        // Replace the transcode thread and stop the transcode process if one is already running.
+        // Waiting for it to exit is left to the new thread so callers aren't held up.
+        Thread previous, transcode;
+
+        synchronized(this) {
+            previous = runner;
+            transcode = new Thread(() -> {
+                if(prepare(previous, resuming)) {
+                    run();
+                }
+            });
+
+            runner = transcode;
+
+            if(process != null) {
+                process.destroy();
+            }
         }
 
         // Stop segment tracking if re-initialising
-        if(tailer != null) {
-            tailer.stop();
-        }
+        SegmentWatcher.getInstance().unregister(streamDirectory);
 
-        // Stop post-processing execution if already running
-        if(postProcessExecutor != null && !postProcessExecutor.isTerminated()) {
-            postProcessExecutor.shutdownNow();
+        // Stop post-processing segments from the previous transcode, segments produced before suspending are still finalised
+        if(!resuming) {
+            PostProcessScheduler.getInstance().cancel(this);
         }
 
         // Determine stream directory
         streamDirectory = new File(SettingsService.getInstance().getCacheDirectory().getPath() + "/streams/" + id);
 
+        // Reset flags
+        ended = false;
+        suspended = false;
+        count = 0;
+        producedNum = -1;
+        startNum = profile.getSegmentNum(profile.getOffset());
+
+        // Start transcoding
+        transcode.start();
+    }
+
+    //
+    // Waits for the previous transcode to finish and prepares the stream directory.
+    // Returns false if the transcode should not be started.
+    //
+    private boolean prepare(Thread previous, boolean resuming) {
         try {
+            if(previous != null) {
+                previous.join();
+            }
+
             if(streamDirectory.exists()) {
-                // Wait for process to finish
-                if(process != null) {
-                    process.waitFor();
+                if(resuming) {
+                    cleanUnfinalised();
+                } else {
+                    FileUtils.cleanDirectory(streamDirectory);
+                    finalisedSegments.clear();
                 }
-
-                FileUtils.cleanDirectory(streamDirectory);
             } else {
                 boolean success = streamDirectory.mkdirs();
 
                 if(!success) {
                     LogService.getInstance().addLogEntry(Level.ERROR, CLASS_NAME, "Unable to create directory " + streamDirectory.getPath(), null);
-                    return;
+                    finish();
+                    return false;
                 }
             }
 
-            // Reset flags
-            ended = false;
-            suspended = false;
-            count = 0;
-
-            // Setup thread pool for post-processing segments
-            postProcessExecutor = Executors.newCachedThreadPool();
+            // Track segment list
+            SegmentWatcher.getInstance().register(streamDirectory, new SegmentListener());
 
-            // Setup tailer for segment list
-            TailerListener listener = new SegmentListener();
-            tailer = new Tailer(new File(streamDirectory + "/segments.txt"), listener);
-            Thread thread = new Thread(tailer);
-            thread.setDaemon(true);
-            thread.start();
-
-            // Start transcoding
-            start();
-        } catch(Exception ex) {
-            if(process != null) {
-                process.destroy();
+            // Superseded or ended while preparing
+            if(runner != Thread.currentThread()) {
+                SegmentWatcher.getInstance().unregister(streamDirectory);
+                return false;
             }
 
-            ended = true;
-
+            return true;
+        } catch(InterruptedException ex) {
+            return false;
+        } catch(Exception ex) {
             LogService.getInstance().addLogEntry(Level.ERROR, CLASS_NAME, "Error starting adaptive streaming process.", ex);
+            finish();
+            return false;
         }
     }
 
-    @Override
-    public void start() {
-        new Thread(this).start();
+    // Mark the process as ended unless it has been initialised again since this transcode started
+    private void finish() {
+        if(runner == Thread.currentThread()) {
+            ended = true;
+        }
     }
 
     @Override
     public void end() {
+        // A stopped transcoder must be resumed before it can exit
+        unthrottle();
+
         // Stop transcode process
-        if(process != null) {
-            process.destroy();
+        Thread previous;
+
+        synchronized(this) {
+            previous = runner;
+            runner = null;
+
+            if(process != null) {
+                process.destroy();
+            }
         }
 
         //  Stop segment tracking
-        tailer.stop();
+        SegmentWatcher.getInstance().unregister(streamDirectory);
+        
+        // Release requests waiting for segments which will no longer be produced
+        pendingSegments.values().forEach((pending) -> {
+            pending.future.cancel(false);
+        });
+        
+        pendingSegments.clear();
 
         // Stop post-processing execution
-        if(postProcessExecutor != null && !postProcessExecutor.isTerminated()) {
-            postProcessExecutor.shutdownNow();
-        }
+        PostProcessScheduler.getInstance().cancel(this);
 
-        try {
-            // Wait for process to finish
-            if(process != null) {
-                process.waitFor();
-            }
+        ended = true;
 
-            // Cleanup working directory
-            if(streamDirectory != null && streamDirectory.exists() && streamDirectory.isDirectory()) {
-                FileUtils.deleteDirectory(streamDirectory);
-            }
-        } catch(InterruptedException ex) {
-            // Do nothing...
-        } catch(IOException ex) {
-            LogService.getInstance().addLogEntry(Level.ERROR, CLASS_NAME, "Failed to remove working directory for Adaptive Streaming job " + id, ex);
-        }
+        // Wait for the transcode to finish and cleanup the working directory in the background
+        File directory = streamDirectory;
 
-        ended = true;
+        new Thread(() -> {
+            try {
+                if(previous != null) {
+                    previous.join();
+                }
+
+                if(directory != null && directory.exists() && directory.isDirectory()) {
+                    FileUtils.deleteDirectory(directory);
+                }
+            } catch(InterruptedException ex) {
+                // Do nothing...
+            } catch(IOException ex) {
+                LogService.getInstance().addLogEntry(Level.ERROR, CLASS_NAME, "Failed to remove working directory for Adaptive Streaming job " + id, ex);
+            }
+        }).start();
     }
 
-    public class SegmentListener extends TailerListenerAdapter {
+    public class SegmentListener implements SegmentWatcher.Listener {
         @Override
-        public void handle(String line) {
+        public void segmentCreated(String line) {
             // Check segment exists
             String segmentPath = streamDirectory + "/" + line;
             File segment = new File(segmentPath);
@@ -189,17 +280,70 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
                 return;
             }
 
-            // Start post-processing job
+            // Track progress
+            Integer num = null;
+
+            try {
+                num = Integer.valueOf(line);
+                producedNum = Math.max(producedNum, num);
+                queuedSegments.add(num);
+            } catch(NumberFormatException ex) {
+                // Not a media segment
+            }
+
+            // Queue post-processing job
             boolean initialised = count > 0;
+            Integer segmentNum = num;
 
-            postProcessExecutor.submit(() -> {
+            queued.incrementAndGet();
+
+            PostProcessScheduler.getInstance().submit(AdaptiveStreamingProcess.this, () -> getPriority(line, initialised), () -> {
                 postProcess(segment, initialised);
+            }, () -> {
+                if(segmentNum != null) {
+                    queuedSegments.remove(segmentNum);
+                }
+
+                queued.decrementAndGet();
+                release();
             });
 
             count++;
+
+            // Pause the transcoder if it is too far ahead
+            throttle();
       }
   }
 
+    //
+    // Segments closest ahead of a viewer's playhead are post-processed first.
+    // Queued segments are re-ranked whenever a viewer is added, removed or moves.
+    // The first segment is needed by every viewer to produce initialisation segments so goes ahead of everything.
+    //
+    private int getPriority(String line, boolean initialised) {
+        if(!initialised) {
+            return -1;
+        }
+
+        int num;
+
+        try {
+            num = Integer.parseInt(line);
+        } catch(NumberFormatException ex) {
+            return Integer.MAX_VALUE;
+        }
+
+        int distance = Integer.MAX_VALUE;
+
+        for(int viewer : viewers.values()) {
+            if(num >= viewer) {
+                distance = Math.min(distance, num - viewer);
+            }
+        }
+
+        return distance;
+    }
+
     private void postProcess(File segment, boolean initialised) {
         // Path to extracted stream segments
         List<String> segmentPaths = new ArrayList<>();
@@ -207,6 +351,12 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
         // Process for transcoding
         Process postProcess = null;
 
+        // Parses the segment once for all fragmented MP4 tracks
+        FragmentedMp4Builder fragmenter = null;
+
+        // Parses the segment once, on first use, for all transport stream tracks
+        MpegTsBuilder remuxer = new MpegTsBuilder(segment);
+
         LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Post-processing segment: " + segment.getAbsolutePath(), null);
 
         try {
@@ -228,6 +378,14 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
             if(profile.getVideoTranscodes() != null) {
                 for(int i = 0; i < profile.getVideoTranscodes().length; i++) {
                     if(vFormat == SMS.Format.MPEGTS) {
+                        String path = segment.getParent() + "/" + i + "-video-" + segment.getName() + ".ts" + ".tmp";
+
+                        // Remux in process where possible
+                        if(remuxer.build(i, new File(path))) {
+                            finaliseTmpFile(new File(path));
+                            continue;
+                        }
+
                         if(command.isEmpty()) {
                             initialiseTranscode(command, segment.getAbsolutePath());
                         }
@@ -241,31 +399,25 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
                         command.add("-f");
                         command.add("mpegts");
 
-                        String path = segment.getParent() + "/" + i + "-video-" + segment.getName() + ".ts" + ".tmp";
                         command.add(path);
 
                         // Add to segment list
                         segmentPaths.add(path);
                     } else if(vFormat == SMS.Format.MP4) {
-                        File init = new File(segment.getParent() + "/" + i + "-video-init.mp4");
-                        File tmpInit = new File(init.getPath() + ".tmp");
+                        File tmpInit = new File(segment.getParent() + "/" + i + "-video-init.mp4.tmp");
                         File newSegment = new File(segment.getParent() + "/" + i + "-video-" + segment.getName() + ".m4s.tmp");
 
+                        if(fragmenter == null) {
+                            fragmenter = new FragmentedMp4Builder(segment);
+                        }
+
                         if(!initialised) {
                             // Generate initialisation segment
-                            FragmentedMp4Builder initBuilder = new FragmentedMp4Builder();
-                            Container initContainer = initBuilder.build(segment.getAbsolutePath(), i, Integer.valueOf(segment.getName()), true);
-                            FileOutputStream initfos = new FileOutputStream(tmpInit);
-                            initContainer.writeContainer(initfos.getChannel());
-                            initfos.close();
+                            fragmenter.write(i, Integer.valueOf(segment.getName()), true, tmpInit);
                             finaliseTmpFile(tmpInit);
                         }
 
-                        FragmentedMp4Builder builder = new FragmentedMp4Builder();
-                        Container container = builder.build(segment.getAbsolutePath(), i, Integer.valueOf(segment.getName()), false);
-                        FileOutputStream fos = new FileOutputStream(newSegment);
-                        container.writeContainer(fos.getChannel());
-                        fos.close();
+                        fragmenter.write(i, Integer.valueOf(segment.getName()), false, newSegment);
                         finaliseTmpFile(newSegment);
                     }
                 }
@@ -320,33 +472,33 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
                         aFormat = MediaUtils.getFormatForCodec(codec);
                     }
 
+                    // Get track ID
+                    int trackId =
+                            i
+                            + (profile.getVideoTranscodes() == null ? 0 : profile.getVideoTranscodes().length)
+                            + (profile.getSubtitleTranscodes() == null ? 0 : profile.getSubtitleTranscodes().length);
+
+                    String path = segment.getParent() + "/" + i + "-audio-" + segment.getName() + "." + MediaUtils.getExtensionForFormat(SMS.MediaType.AUDIO, aFormat) + ".tmp";
+
                     if(aFormat == SMS.Format.MP4) {
-                        // Get track ID
-                        int trackId =
-                                i
-                                + (profile.getVideoTranscodes() == null ? 0 : profile.getVideoTranscodes().length)
-                                + (profile.getSubtitleTranscodes() == null ? 0 : profile.getSubtitleTranscodes().length);
-
-                        File init = new File(segment.getParent() + "/" + i + "-audio-init.mp4");
-                        File tmpInit = new File(init.getPath() + ".tmp");
+                        File tmpInit = new File(segment.getParent() + "/" + i + "-audio-init.mp4.tmp");
                         File newSegment = new File(segment.getParent() + "/" + i + "-audio-" + segment.getName() + ".m4s.tmp");
 
+                        if(fragmenter == null) {
+                            fragmenter = new FragmentedMp4Builder(segment);
+                        }
+
                         if(!initialised) {
                             // Generate initialisation segment
-                            FragmentedMp4Builder initBuilder = new FragmentedMp4Builder();
-                            Container initContainer = initBuilder.build(segment.getAbsolutePath(), trackId, Integer.valueOf(segment.getName()), true);
-                            FileOutputStream initfos = new FileOutputStream(tmpInit);
-                            initContainer.writeContainer(initfos.getChannel());
-                            initfos.close();
+                            fragmenter.write(trackId, Integer.valueOf(segment.getName()), true, tmpInit);
                             finaliseTmpFile(tmpInit);
                         }
 
-                        FragmentedMp4Builder builder = new FragmentedMp4Builder();
-                        Container container = builder.build(segment.getAbsolutePath(), trackId, Integer.valueOf(segment.getName()), false);
-                        FileOutputStream fos = new FileOutputStream(newSegment);
-                        container.writeContainer(fos.getChannel());
-                        fos.close();
+                        fragmenter.write(trackId, Integer.valueOf(segment.getName()), false, newSegment);
                         finaliseTmpFile(newSegment);
+                    } else if(aFormat == SMS.Format.MPEGTS && remuxer.build(trackId, new File(path))) {
+                        // Remuxed in process
+                        finaliseTmpFile(new File(path));
                     } else {
                         if(command.isEmpty()) {
                             initialiseTranscode(command, segment.getAbsolutePath());
@@ -361,7 +513,6 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
                         command.add("-f");
                         command.add(MediaUtils.getFormat(aFormat));
 
-                        String path = segment.getParent() + "/" + i + "-audio-" + segment.getName() + "." + MediaUtils.getExtensionForFormat(SMS.MediaType.AUDIO, aFormat) + ".tmp";
                         command.add(path);
 
                         // Add to segment list
@@ -387,11 +538,21 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
                 finaliseTmpFile(tmpSegment);
             });
 
+            // Release the segment before removing it
+            if(fragmenter != null) {
+                fragmenter.close();
+                fragmenter = null;
+            }
+
+            remuxer.close();
+
             // Remove original segment
             if(segment.exists()) {
                 segment.delete();
             }
-        } catch(IOException ex) {
+
+            finalisedSegments.add(Integer.valueOf(segment.getName()));
+        } catch(IOException | RuntimeException ex) {
             LogService.getInstance().addLogEntry(Level.ERROR, CLASS_NAME, "Failed to post-process segment: " + segment.getAbsolutePath(), ex);
         } catch(InterruptedException ex) {
             //Do nothing...
@@ -399,6 +560,20 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
             if(postProcess != null) {
                 postProcess.destroy();
             }
+
+            try {
+                remuxer.close();
+            } catch(IOException ex) {
+                // Do nothing...
+            }
+
+            if(fragmenter != null) {
+                try {
+                    fragmenter.close();
+                } catch(IOException ex) {
+                    // Do nothing...
+                }
+            }
         }
     }
 
@@ -416,18 +591,130 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
         File finalised = new File(FilenameUtils.getFullPath(tmp.getPath()) + FilenameUtils.getBaseName(tmp.getPath()));
 
         if(tmp.exists()) {
-            tmp.renameTo(finalised);
+            if(tmp.renameTo(finalised)) {
+                segmentReady(finalised);
+                cacheSegment(finalised);
+            }
         } else {
             LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Failed to rename file: " + tmp.toString(), null);
         }
     }
 
-    public void setSegmentNum(int num) {
-        this.segmentNum = num;
+    //
+    // Returns a future which completes once the requested segment is available.
+    // Requests for the same segment share a single future.
+    //
+    public CompletableFuture<File> getSegment(File segment) {
+        PendingSegment pending = pendingSegments.compute(segment.getName(), (name, existing) -> {
+            PendingSegment result = existing == null ? new PendingSegment() : existing;
+            result.waiters++;
+            return result;
+        });
+        
+        // The segment may have been finalised before we registered
+        if(segment.exists() && pendingSegments.remove(segment.getName(), pending)) {
+            pending.future.complete(segment);
+        }
+        
+        return pending.future;
+    }
+
+    //
+    // Called when a request stops waiting for a segment before it is ready.
+    // The segment is no longer tracked once no requests are waiting for it.
+    //
+    public void releaseSegment(File segment, CompletableFuture<File> future) {
+        pendingSegments.computeIfPresent(segment.getName(), (name, pending) -> {
+            if(pending.future != future) {
+                return pending;
+            }
+            
+            return --pending.waiters > 0 ? pending : null;
+        });
+    }
+    
+    // Keep media segments so they can be served again without transcoding
+    private void cacheSegment(File segment) {
+        if(streamKey == null || segment.getName().contains("-init.")) {
+            return;
+        }
+
+        // Stream copies start on the key frame before the seek position so the first segment after a seek has different content
+        if(startNum > 0 && TranscodeUtils.isVideoCopy(profile)) {
+            String name = FilenameUtils.getBaseName(segment.getName());
+
+            if(name.substring(name.lastIndexOf('-') + 1).equals(String.valueOf(startNum))) {
+                return;
+            }
+        }
+
+        SegmentCache.getInstance().put(getCacheKey(segment.getName()), segment);
+    }
+
+    //
+    // Returns the key used to cache a segment produced by this process.
+    // Segments with the same key are interchangeable between processes.
+    //
+    public String getCacheKey(String name) {
+        return streamKey + ":" + name;
     }
 
-    public int getSegmentNum() {
-        return this.segmentNum;
+    // Notify requests waiting for a segment
+    private void segmentReady(File segment) {
+        PendingSegment pending = pendingSegments.remove(segment.getName());
+        
+        if(pending != null) {
+            pending.future.complete(segment);
+        }
+    }
+
+    public void addViewer(UUID job, int num) {
+        viewers.put(job, num);
+        PostProcessScheduler.getInstance().reprioritise(this);
+    }
+
+    public void removeViewer(UUID job) {
+        if(viewers.remove(job) != null) {
+            PostProcessScheduler.getInstance().reprioritise(this);
+        }
+    }
+
+    public boolean hasViewer(UUID job) {
+        return viewers.containsKey(job);
+    }
+
+    public int getViewerCount() {
+        return viewers.size();
+    }
+
+    public void setSegmentNum(UUID job, int num) {
+        Integer previous = viewers.replace(job, num);
+
+        if(previous != null && previous != num) {
+            PostProcessScheduler.getInstance().reprioritise(this);
+        }
+
+        throttle();
+    }
+
+    public int getSegmentNum(UUID job) {
+        return viewers.getOrDefault(job, 0);
+    }
+
+    public File getStreamDirectory() {
+        return this.streamDirectory;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public void setStreamKey(String streamKey) {
+        this.streamKey = streamKey;
     }
 
     public void setTranscodeProfile(TranscodeProfile profile) {
@@ -442,27 +729,202 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
         this.transcoder = transcoder;
     }
 
+    //
+    // Stops the transcoder but keeps finalised segments and the position of the viewer so the stream can resume.
+    //
     public void suspend() {
-        // Stop the current process
-        end();
+        resumeNum = viewers.values().stream().max(Integer::compare).orElse(0);
+
+        // A stopped transcoder must be resumed before it can exit
+        unthrottle();
+
+        // Stop transcode process
+        if(process != null) {
+            process.destroy();
+        }
+
+        // Stop segment tracking, segments already queued are still post-processed
+        SegmentWatcher.getInstance().unregister(streamDirectory);
+
+        // Release requests waiting for segments which will no longer be produced
+        pendingSegments.values().forEach((pending) -> {
+            pending.future.cancel(false);
+        });
+
+        pendingSegments.clear();
+
         suspended = true;
+
+        LogService.getInstance().addLogEntry(Level.DEBUG, CLASS_NAME, "Suspended transcode for job " + id + " at segment " + resumeNum + " (" + finalisedSegments.size() + " segments finalised).", null);
+    }
+
+    //
+    // Returns the first segment at or after the position the process was suspended at which has not been produced.
+    // Segments still waiting for post-processing will be finalised so the transcode resumes after them.
+    //
+    public int getResumeNum() {
+        int num = resumeNum;
+
+        while(finalisedSegments.contains(num) || queuedSegments.contains(num)) {
+            num++;
+        }
+
+        return num;
+    }
+
+    //
+    // Remove everything from the stream directory except finalised segments and those waiting for post-processing.
+    // Temporary files are only removed once post-processing has finished as they may still be in use.
+    //
+    private void cleanUnfinalised() {
+        boolean idle = queuedSegments.isEmpty();
+
+        File[] files = streamDirectory.listFiles((dir, name) -> {
+            return name.equals(SegmentWatcher.SEGMENT_LIST) || (StringUtils.isNumeric(name) && !queuedSegments.contains(Integer.valueOf(name))) || (idle && name.endsWith(".tmp"));
+        });
+
+        if(files == null) {
+            return;
+        }
+
+        for(File file : files) {
+            file.delete();
+        }
+    }
+
+    //
+    // Whether a segment will be produced shortly by the running transcode without restarting it.
+    // A process which has been initialised counts as running before its transcoder has spawned.
+    //
+    public boolean isProducing(int num) {
+        if(ended || suspended) {
+            return false;
+        }
+
+        return num >= startNum && num <= Math.max(producedNum, startNum) + SEEK_WINDOW;
     }
 
     public boolean isSuspended() {
         return this.suspended;
     }
 
+    //
+    // Pause the transcoder while it is more than the throttle window ahead of the
+    // furthest segment requested by a viewer, or while post-processing has fallen
+    // behind, and resume it once they catch up.
+    //
+    private synchronized void throttle() {
+        if(profile == null || SystemUtils.IS_OS_WINDOWS) {
+            return;
+        }
+
+        int window = SettingsService.getInstance().getThrottleWindow();
+        int ahead = 0;
+        boolean pause = false;
+
+        if(window > 0 && !viewers.isEmpty()) {
+            int furthest = viewers.values().stream().max(Integer::compare).orElse(0);
+            ahead = producedNum - furthest;
+            pause = ahead > Math.max(1, window / profile.getSegmentDuration());
+        }
+
+        if(queued.get() >= MAX_QUEUED_SEGMENTS) {
+            pause = true;
+        }
+
+        if(!throttled && pause) {
+            if(signal("STOP")) {
+                throttled = true;
+                LogService.getInstance().addLogEntry(Level.DEBUG, CLASS_NAME, "Pausing transcode for job " + id + " (" + ahead + " segments ahead, " + queued.get() + " segments queued).", null);
+            }
+        } else if(throttled && !pause) {
+            unthrottle();
+            LogService.getInstance().addLogEntry(Level.DEBUG, CLASS_NAME, "Resuming transcode for job " + id + ".", null);
+        }
+    }
+
+    //
+    // Resume the transcoder if it was paused and can now continue.
+    // Never pauses so it is safe to call while the transcoder is being stopped.
+    //
+    private synchronized void release() {
+        if(throttled) {
+            throttle();
+        }
+    }
+
+    private synchronized void unthrottle() {
+        if(throttled) {
+            signal("CONT");
+            throttled = false;
+        }
+    }
+
+    //
+    // Queue a signal for the transcode process.
+    // Returns false if there is no running transcoder to signal.
+    //
+    private boolean signal(String signal) {
+        Process target = process;
+
+        if(target == null || !target.isAlive()) {
+            return false;
+        }
+
+        SIGNALLER.execute(() -> {
+            // The transcoder may have exited while the signal was queued
+            if(!target.isAlive()) {
+                return;
+            }
+
+            try {
+                Process kill = new ProcessBuilder("kill", "-" + signal, String.valueOf(target.pid())).start();
+
+                if(kill.waitFor() != 0) {
+                    LogService.getInstance().addLogEntry(Level.WARN, CLASS_NAME, "Failed to send " + signal + " to transcode process for job " + id, null);
+                }
+            } catch(IOException ex) {
+                LogService.getInstance().addLogEntry(Level.WARN, CLASS_NAME, "Failed to send " + signal + " to transcode process for job " + id, ex);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        return true;
+    }
+
     @Override
     public void run() {
         try {
-            for(String[] command : commands) {
+            for(int attempt = 0; attempt < commands.length; attempt++) {
+                // Don't try alternatives once superseded, suspended or ended
+                if(runner != Thread.currentThread() || suspended) {
+                    break;
+                }
+
+                String[] command = commands[attempt];
+
                 LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, StringUtils.join(command, " "), null);
 
-                // Clean stream directory
-                FileUtils.cleanDirectory(streamDirectory);
+                // Clean up after a failed attempt, the directory has already been prepared for the first
+                if(attempt > 0) {
+                    FileUtils.cleanDirectory(streamDirectory);
+                    finalisedSegments.clear();
+                }
+
+                // Clear throttling state left by a failed attempt
+                unthrottle();
+
+                // Checked again with the lock held so a transcoder is never started after it has been stopped
+                synchronized(this) {
+                    if(runner != Thread.currentThread()) {
+                        break;
+                    }
+
+                    ProcessBuilder processBuilder = new ProcessBuilder(command);
+                    process = processBuilder.start();
+                }
 
-                ProcessBuilder processBuilder = new ProcessBuilder(command);
-                process = processBuilder.start();
                 new NullStream(process.getInputStream()).start();
                 TranscodeAnalysisStream transcodeAnalysis = new TranscodeAnalysisStream(id, StringUtils.join(command, " "), process.getErrorStream());
                 transcodeAnalysis.start();
@@ -489,7 +951,13 @@ public class AdaptiveStreamingProcess extends SMSProcess implements Runnable {
                 process.destroy();
             }
 
-            ended = true;
+            finish();
         }
     }
+
+    // A segment requests are waiting for and the number of requests waiting for it
+    private static class PendingSegment {
+        private final CompletableFuture<File> future = new CompletableFuture<>();
+        private int waiters = 0;
+    }
 }
\ No newline at end of file
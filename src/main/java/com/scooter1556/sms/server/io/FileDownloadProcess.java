@@ -25,13 +25,14 @@ package com.scooter1556.sms.server.io;
 
 import com.scooter1556.sms.server.service.LogService;
 import com.scooter1556.sms.server.utilities.HttpUtils;
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.List;
@@ -47,6 +48,12 @@ public class FileDownloadProcess extends SMSProcess {
     private static final long DEFAULT_EXPIRE_TIME = 604800000L;
     private static final String MULTIPART_BOUNDARY = "MULTIPART_BYTERANGES";
     
+    // Tomcat sendfile request attributes
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+    
     Path filepath;
     String contentType;
     boolean head = false;
@@ -227,8 +234,32 @@ public class FileDownloadProcess extends SMSProcess {
 
         // Send requested file (part(s)) to client ------------------------------------------------
 
+        // Hand single ranges to the connector if it can send them directly from the file
+        if (!head && ranges.size() <= 1 && isSendfileSupported()) {
+            Range r = ranges.isEmpty() ? full : ranges.get(0);
+            
+            response.setContentType(contentType);
+            response.setHeader("Content-Length", String.valueOf(r.length));
+            response.setHeader("Content-Range", "bytes " + r.start + "-" + r.end + "/" + r.total);
+            
+            if (r != full) {
+                LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, String.format("Send partial content: from %d-%d", r.start, r.end), null);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
+            } else {
+                LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Send complete file", null);
+            }
+            
+            // The file is written by the connector once the request returns
+            request.setAttribute(SENDFILE_FILENAME_ATTR, filepath.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, r.start);
+            request.setAttribute(SENDFILE_END_ATTR, r.end + 1);
+            
+            bytesTransferred += r.length;
+            return;
+        }
+
         // Prepare streams.
-        try (InputStream input = new BufferedInputStream(new FileInputStream(filepath.toFile()));
+        try (FileChannel input = FileChannel.open(filepath, StandardOpenOption.READ);
              OutputStream output = response.getOutputStream()) {
 
             if (ranges.isEmpty() || ranges.get(0) == full) {
@@ -241,7 +272,7 @@ public class FileDownloadProcess extends SMSProcess {
                 // Don't return data if HEAD request
                 if(!head) {
                     LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Return complete file", null);
-                    bytesTransferred += Range.copy(input, output, length, full.start, full.length);
+                    bytesTransferred += Range.copy(input, output, full.start, full.length);
                 }
 
             } else if (ranges.size() == 1) {
@@ -255,7 +286,9 @@ public class FileDownloadProcess extends SMSProcess {
                 response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
 
                 // Copy single part range.
-                bytesTransferred += Range.copy(input, output, length, r.start, r.length);
+                if(!head) {
+                    bytesTransferred += Range.copy(input, output, r.start, r.length);
+                }
 
             } else {
 
@@ -277,7 +310,7 @@ public class FileDownloadProcess extends SMSProcess {
                     sos.println("Content-Range: bytes " + r.start + "-" + r.end + "/" + r.total);
 
                     // Copy single part range of multi part range.
-                    bytesTransferred += Range.copy(input, output, length, r.start, r.length);
+                    bytesTransferred += Range.copy(input, output, r.start, r.length);
                 }
 
                 // End with multipart boundary.
@@ -286,6 +319,13 @@ public class FileDownloadProcess extends SMSProcess {
             }
         }
     }
+    
+    //
+    // Sendfile is handled by the connector after the servlet returns so is not available to async requests.
+    //
+    private boolean isSendfileSupported() {
+        return !request.isAsyncStarted() && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR));
+    }
 
     private static class Range {
         long start;
@@ -311,35 +351,20 @@ public class FileDownloadProcess extends SMSProcess {
             return (substring.length() > 0) ? Long.parseLong(substring) : -1;
         }
 
-        private static long copy(InputStream input, OutputStream output, long inputSize, long start, long length) {
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            int read;
+        private static long copy(FileChannel input, OutputStream output, long start, long length) {
+            WritableByteChannel channel = Channels.newChannel(output);
             long bytes = 0;
 
             try {
-                if (inputSize == length) {
-                    // Write requested range.
-                    while ((read = input.read(buffer)) > 0) {
-                        output.write(buffer, 0, read);
-                        output.flush();
-                        bytes += read;
+                // Let the channel move data without an intermediate array where the platform allows
+                while (bytes < length) {
+                    long sent = input.transferTo(start + bytes, length - bytes, channel);
+
+                    if (sent <= 0) {
+                        break;
                     }
-                } else {
-                    input.skip(start);
-                    long toRead = length;
-
-                    while ((read = input.read(buffer)) > 0) {
-                        if ((toRead -= read) > 0) {
-                            output.write(buffer, 0, read);
-                            output.flush();
-                            bytes += read;
-                        } else {
-                            output.write(buffer, 0, (int) toRead + read);
-                            output.flush();
-                            bytes += (read + toRead);
-                            break;
-                        }
-                    }                
+
+                    bytes += sent;
                 }
             } catch (IOException e) {
                 // If copying is interrupted for any reason return the number of bytes sent up to that point
@@ -347,6 +372,6 @@ public class FileDownloadProcess extends SMSProcess {
             }
             
             return bytes;
-        }     
+        }
     }
 }
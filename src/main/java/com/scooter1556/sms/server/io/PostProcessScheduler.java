@@ -0,0 +1,205 @@
+/*
+ * Author: Scott Ware <scoot.software@gmail.com>
+ * Copyright (c) 2015 Scott Ware
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.scooter1556.sms.server.io;
+
+import com.scooter1556.sms.server.domain.PostProcessStats;
+import com.scooter1556.sms.server.service.SettingsService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Runs segment post-processing for all adaptive streaming processes on a
+ * bounded pool of threads.
+ *
+ * Queued segments are run in priority order, lowest first, so segments
+ * viewers are about to request are not held up behind segments they will
+ * not need for some time. Priorities are supplied by the owning process and
+ * re-evaluated when it asks, so queued segments follow viewers as they move.
+ */
+public final class PostProcessScheduler {
+
+    private static final String THREAD_NAME = "PostProcess-";
+
+    private final ThreadPoolExecutor executor;
+
+    // Queued and running tasks
+    private final Set<Task> tasks = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong processTime = new AtomicLong();
+
+    private static PostProcessScheduler instance = null;
+
+    private PostProcessScheduler() {
+        int threads = SettingsService.getInstance().getPostProcessThreads();
+        AtomicInteger count = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), (runnable) -> {
+            Thread thread = new Thread(runnable, THREAD_NAME + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized PostProcessScheduler getInstance() {
+        if(instance == null) {
+            instance = new PostProcessScheduler();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Queue a segment for post-processing.
+     *
+     * @param owner The process the segment belongs to.
+     * @param priority Current priority of the segment, lower values are processed first.
+     * @param task Post-processing task.
+     * @param done Called once the task has finished or been cancelled.
+     */
+    public void submit(Object owner, IntSupplier priority, Runnable task, Runnable done) {
+        updatePoolSize();
+
+        Task scheduled = new Task(owner, priority, task, done);
+        tasks.add(scheduled);
+        executor.execute(scheduled);
+    }
+
+    /**
+     * Re-evaluate the priority of queued tasks for a process.
+     *
+     * @param owner The process whose priorities have changed.
+     */
+    public void reprioritise(Object owner) {
+        for(Task task : tasks) {
+            // Only tasks still waiting in the queue can be re-ordered
+            if(task.owner == owner && executor.remove(task)) {
+                task.priority = task.rank.getAsInt();
+                executor.execute(task);
+            }
+        }
+    }
+
+    /**
+     * Cancel all queued and running tasks for a process.
+     *
+     * @param owner The process to cancel tasks for.
+     */
+    public void cancel(Object owner) {
+        for(Task task : tasks) {
+            if(task.owner == owner) {
+                executor.remove(task);
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Returns statistics for segment post-processing.
+     *
+     * @return Post-processing statistics.
+     */
+    public PostProcessStats getStats() {
+        long count = completed.get();
+
+        return new PostProcessStats(executor.getMaximumPoolSize(),
+                                    executor.getActiveCount(),
+                                    executor.getQueue().size(),
+                                    count,
+                                    count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitTime.get() / count),
+                                    count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(processTime.get() / count));
+    }
+
+    // Apply changes to the number of threads
+    private synchronized void updatePoolSize() {
+        int threads = SettingsService.getInstance().getPostProcessThreads();
+
+        if(threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else if(threads < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    private class Task extends FutureTask<Void> implements Comparable<Task> {
+        private final Object owner;
+        private final IntSupplier rank;
+        private volatile int priority;
+        private final long order = sequence.getAndIncrement();
+        private final long submitted = System.nanoTime();
+        private final Runnable done;
+
+        private Task(Object owner, IntSupplier rank, Runnable task, Runnable done) {
+            super(task, null);
+            this.owner = owner;
+            this.rank = rank;
+            this.priority = rank.getAsInt();
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            if(isDone()) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            waitTime.addAndGet(start - submitted);
+
+            super.run();
+
+            processTime.addAndGet(System.nanoTime() - start);
+            completed.incrementAndGet();
+        }
+
+        @Override
+        protected void done() {
+            tasks.remove(this);
+
+            if(done != null) {
+                done.run();
+            }
+        }
+
+        // Equal priorities are run in the order they were submitted
+        @Override
+        public int compareTo(Task task) {
+            int result = Integer.compare(priority, task.priority);
+            return result != 0 ? result : Long.compare(order, task.order);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Author: Scott Ware <scoot.software@gmail.com>
+ * Copyright (c) 2015 Scott Ware
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.scooter1556.sms.server.io;
+
+import com.scooter1556.sms.server.domain.SegmentCacheStats;
+import com.scooter1556.sms.server.service.LogService;
+import com.scooter1556.sms.server.service.LogService.Level;
+import com.scooter1556.sms.server.service.SettingsService;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps transcoded segments on disk after their stream has ended so repeat
+ * plays can be served without transcoding again.
+ *
+ * Segments are stored under a hash of their key (media element, output
+ * profile and segment name) and evicted least recently used first once the
+ * configured size is exceeded. File modification times record use so the
+ * order survives a restart.
+ */
+public final class SegmentCache {
+
+    private static final String CLASS_NAME = "SegmentCache";
+
+    private static final String CACHE_DIRECTORY = "segments";
+    private static final String TMP_EXTENSION = ".tmp";
+
+    private File directory = null;
+
+    // Cached file names and sizes in least recently used order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static SegmentCache instance = null;
+
+    private SegmentCache() {
+        load();
+    }
+
+    /**
+     * Get the segment cache, loading existing entries from disk on first use.
+     *
+     * @return The current instance of SegmentCache.
+     */
+    public static synchronized SegmentCache getInstance() {
+        if(instance == null) {
+            instance = new SegmentCache();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Returns a cached segment.
+     *
+     * @param key Key identifying the segment.
+     * @return The cached segment or null if it is not in the cache.
+     */
+    public File get(String key) {
+        if(directory == null) {
+            return null;
+        }
+
+        String name = getFileName(key);
+        File segment = new File(directory, name);
+
+        synchronized(this) {
+            Long length = entries.get(name);
+
+            if(length == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            // Removed outside of the cache
+            if(!segment.exists()) {
+                entries.remove(name);
+                size -= length;
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        segment.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+
+        return segment;
+    }
+
+    /**
+     * Add a segment to the cache.
+     *
+     * The segment is hard linked into the cache where possible so the
+     * original can be removed with its stream.
+     *
+     * @param key Key identifying the segment.
+     * @param segment The segment to cache.
+     */
+    public void put(String key, File segment) {
+        if(directory == null || getCapacity() == 0 || !segment.isFile()) {
+            return;
+        }
+
+        String name = getFileName(key);
+
+        synchronized(this) {
+            if(entries.containsKey(name)) {
+                return;
+            }
+        }
+
+        Path target = new File(directory, name).toPath();
+
+        try {
+            Files.deleteIfExists(target);
+
+            try {
+                Files.createLink(target, segment.toPath());
+            } catch(IOException | UnsupportedOperationException ex) {
+                // Fall back to copying if links are not supported
+                Path tmp = new File(directory, name + TMP_EXTENSION).toPath();
+                Files.copy(segment.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch(IOException ex) {
+            LogService.getInstance().addLogEntry(Level.WARN, CLASS_NAME, "Failed to cache segment " + segment.getPath(), ex);
+            return;
+        }
+
+        synchronized(this) {
+            Long previous = entries.put(name, segment.length());
+            size += segment.length() - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    /**
+     * Returns statistics for the segment cache.
+     *
+     * @return Segment cache statistics.
+     */
+    public synchronized SegmentCacheStats getStats() {
+        return new SegmentCacheStats(entries.size(), size, getCapacity(), hits.get(), misses.get());
+    }
+
+    //
+    // Build the index from segments left by a previous run.
+    //
+    private synchronized void load() {
+        directory = new File(SettingsService.getInstance().getCacheDirectory(), CACHE_DIRECTORY);
+
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            LogService.getInstance().addLogEntry(Level.ERROR, CLASS_NAME, "Unable to create segment cache directory " + directory.getPath(), null);
+            directory = null;
+            return;
+        }
+
+        File[] files = directory.listFiles();
+
+        if(files == null) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+
+        for(File file : files) {
+            // Remove incomplete copies
+            if(file.getName().endsWith(TMP_EXTENSION)) {
+                file.delete();
+                continue;
+            }
+
+            entries.put(file.getName(), file.length());
+            size += file.length();
+        }
+
+        evict();
+
+        LogService.getInstance().addLogEntry(Level.INFO, CLASS_NAME, "Segment cache contains " + entries.size() + " segments (" + (size / 1048576) + " MB).", null);
+    }
+
+    // Remove least recently used segments until the cache is within its limit
+    private void evict() {
+        long capacity = getCapacity();
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+
+        while(size > capacity && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File(directory, entry.getKey()).delete();
+            size -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private long getCapacity() {
+        return SettingsService.getInstance().getSegmentCacheSize() * 1048576L;
+    }
+
+    private String getFileName(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+
+            for(byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+
+            return name.toString();
+        } catch(NoSuchAlgorithmException ex) {
+            // SHA-1 is always available
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Author: Scott Ware <scoot.software@gmail.com>
+ * Copyright (c) 2015 Scott Ware
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.scooter1556.sms.server.io;
+
+import com.scooter1556.sms.server.service.LogService;
+import com.scooter1556.sms.server.service.LogService.Level;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches the segment lists written by transcode processes and reports new
+ * segments as soon as they are listed. A single thread serves all streams.
+ */
+public final class SegmentWatcher {
+    
+    private static final String CLASS_NAME = "SegmentWatcher";
+    
+    public static final String SEGMENT_LIST = "segments.txt";
+    
+    private WatchService watchService = null;
+    private Thread watchThread = null;
+    private final Map<WatchKey, SegmentList> segmentLists = new ConcurrentHashMap<>();
+    
+    private static final SegmentWatcher INSTANCE = new SegmentWatcher();
+    
+    /**
+     * Get the current segment watcher.
+     * 
+     * @return The current instance of SegmentWatcher.
+     */
+    public static SegmentWatcher getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Interface for receiving notification of new segments.
+     */
+    public interface Listener {
+        void segmentCreated(String name);
+    }
+    
+    /**
+     * Start watching the segment list in a stream directory.
+     * 
+     * @param directory The stream directory containing the segment list.
+     * @param listener Listener to notify when a segment is added to the list.
+     * @throws IOException If the directory cannot be watched.
+     */
+    public synchronized void register(File directory, Listener listener) throws IOException {
+        // Start watch thread if necessary
+        if(watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            
+            watchThread = new Thread(this::run, CLASS_NAME);
+            watchThread.setDaemon(true);
+            watchThread.start();
+        }
+        
+        // Replace any existing registration for this directory
+        unregister(directory);
+        
+        WatchKey key = directory.toPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        SegmentList segmentList = new SegmentList(directory.toPath().resolve(SEGMENT_LIST), listener);
+        segmentLists.put(key, segmentList);
+        
+        // Process anything listed before we started watching
+        segmentList.read(false);
+    }
+    
+    /**
+     * Stop watching the segment list in a stream directory.
+     * 
+     * @param directory The stream directory containing the segment list.
+     */
+    public synchronized void unregister(File directory) {
+        if(directory == null) {
+            return;
+        }
+        
+        Path path = directory.toPath();
+        
+        segmentLists.keySet().removeIf((key) -> {
+            if(key.watchable().equals(path)) {
+                key.cancel();
+                return true;
+            }
+            
+            return false;
+        });
+    }
+    
+    private void run() {
+        while(true) {
+            WatchKey key;
+            
+            try {
+                key = watchService.take();
+            } catch(InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            
+            SegmentList segmentList = segmentLists.get(key);
+            boolean changed = false, created = false;
+            
+            for(WatchEvent<?> event : key.pollEvents()) {
+                if(event.kind() == OVERFLOW) {
+                    changed = true;
+                } else if(SEGMENT_LIST.equals(event.context().toString())) {
+                    changed = true;
+                    created |= event.kind() == ENTRY_CREATE;
+                }
+            }
+            
+            if(segmentList != null && changed) {
+                segmentList.read(created);
+            }
+            
+            if(!key.reset()) {
+                segmentLists.remove(key);
+            }
+        }
+    }
+    
+    //
+    // Tracks the position reached in a segment list and dispatches new entries.
+    //
+    private static class SegmentList {
+        private final Path path;
+        private final Listener listener;
+        private final StringBuilder line = new StringBuilder();
+        private long offset = 0;
+        
+        private SegmentList(Path path, Listener listener) {
+            this.path = path;
+            this.listener = listener;
+        }
+        
+        private synchronized void read(boolean created) {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+                long length = file.length();
+                
+                // The list has been recreated
+                if(created || length < offset) {
+                    offset = 0;
+                    line.setLength(0);
+                }
+                
+                if(length == offset) {
+                    return;
+                }
+                
+                byte[] buffer = new byte[(int) (length - offset)];
+                file.seek(offset);
+                file.readFully(buffer);
+                offset = length;
+                
+                for(char c : new String(buffer, StandardCharsets.UTF_8).toCharArray()) {
+                    if(c == '\n') {
+                        String name = line.toString().trim();
+                        line.setLength(0);
+                        
+                        if(!name.isEmpty()) {
+                            listener.segmentCreated(name);
+                        }
+                    } else {
+                        line.append(c);
+                    }
+                }
+            } catch(FileNotFoundException ex) {
+                // List has not been created yet
+                offset = 0;
+                line.setLength(0);
+            } catch(IOException ex) {
+                LogService.getInstance().addLogEntry(Level.ERROR, CLASS_NAME, "Failed to read segment list " + path.toString(), ex);
+            }
+        }
+    }
+}
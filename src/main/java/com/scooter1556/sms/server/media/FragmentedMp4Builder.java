@@ -1,5 +1,6 @@
 package com.scooter1556.sms.server.media;
 
+import java.io.Closeable;
 import java.io.File;
 import org.mp4parser.*;
 import org.mp4parser.boxes.iso14496.part12.*;
@@ -11,7 +12,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import org.mp4parser.muxer.FileRandomAccessSourceImpl;
 import org.mp4parser.muxer.Mp4TrackImpl;
@@ -19,29 +22,32 @@ import org.mp4parser.muxer.Mp4TrackImpl;
 import static org.mp4parser.tools.CastUtils.l2i;
 
 /**
- * Creates a fragmented MP4 file.
+ * Creates fragmented MP4 files from the tracks of a segment.
+ * 
+ * The segment is parsed once and each track is read from the same source,
+ * so all fragments and initialisation segments for a segment should be
+ * created from a single instance.
  */
-public class FragmentedMp4Builder {
+public class FragmentedMp4Builder implements Closeable {
     
     private static final String CLASS_NAME = "FMP4Builder";
+    
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
 
-    public FragmentedMp4Builder() {}
+    private final IsoFile segment;
+    private final FileRandomAccessSourceImpl source;
+    private final Map<Integer, Track> tracks = new HashMap<>();
+    
+    // Shared between fragments written from this segment
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
 
-    public Container build(String path, int trackId, int sequence, boolean init) {
-        File segment = new File(path);
-        
-        if(!segment.exists() || !segment.isFile()) {
-            return null;
-        }
-        
-        Track track = null;
-        
-        try {
-           track = new Mp4TrackImpl(trackId + 1, new IsoFile(segment), new FileRandomAccessSourceImpl(new RandomAccessFile(segment, "r")), "segment");
-        } catch (IOException ex) {
-            return null;
-        }
-        
+    public FragmentedMp4Builder(File segment) throws IOException {
+        this.segment = new IsoFile(segment);
+        this.source = new FileRandomAccessSourceImpl(new RandomAccessFile(segment, "r"));
+    }
+
+    public Container build(int trackId, int sequence, boolean init) throws IOException {
+        Track track = getTrack(trackId);
         BasicContainer isoFile = new BasicContainer();
         
         if(init) {
@@ -55,6 +61,41 @@ public class FragmentedMp4Builder {
         return isoFile;
     }
     
+    /**
+     * Writes the initialisation segment or media fragment for a track to a file.
+     * 
+     * @param trackId Index of the track in the segment.
+     * @param sequence Sequence number of the segment.
+     * @param init True to write the initialisation segment.
+     * @param output File to write to.
+     * @throws IOException If the track can't be read or the output written.
+     */
+    public void write(int trackId, int sequence, boolean init, File output) throws IOException {
+        Container container = build(trackId, sequence, init);
+        
+        try (FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            container.writeContainer(channel);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        source.close();
+        segment.close();
+    }
+    
+    // Tracks are parsed on first use and shared between init and media fragments
+    private Track getTrack(int trackId) throws IOException {
+        Track track = tracks.get(trackId);
+        
+        if(track == null) {
+            track = new Mp4TrackImpl(trackId + 1, segment, source, "segment");
+            tracks.put(trackId, track);
+        }
+        
+        return track;
+    }
+    
     public ParsableBox createFtyp() {
         List<String> minorBrands = new LinkedList<>();
         minorBrands.add("mp42");
@@ -110,15 +151,40 @@ public class FragmentedMp4Builder {
             }
 
             public void getBox(WritableByteChannel writableByteChannel) throws IOException {
-                ByteBuffer header = ByteBuffer.allocate(8);
-                IsoTypeWriter.writeUInt32(header, l2i(getSize()));
-                header.put(IsoFile.fourCCtoBytes(getType()));
-                ((Buffer)header).rewind();
-                writableByteChannel.write(header);
+                // Gather header and samples into the shared buffer to reduce writes
+                ByteBuffer buffer = writeBuffer;
+                ((Buffer)buffer).clear();
+                
+                IsoTypeWriter.writeUInt32(buffer, l2i(getSize()));
+                buffer.put(IsoFile.fourCCtoBytes(getType()));
 
                 for (Sample sample : track.getSamples()) {
-                    sample.writeTo(writableByteChannel);
+                    ByteBuffer data = sample.asByteBuffer();
+                    
+                    if (data.remaining() > buffer.remaining()) {
+                        flush(buffer, writableByteChannel);
+                    }
+                    
+                    if (data.remaining() > buffer.remaining()) {
+                        while (data.hasRemaining()) {
+                            writableByteChannel.write(data);
+                        }
+                    } else {
+                        buffer.put(data);
+                    }
                 }
+                
+                flush(buffer, writableByteChannel);
+            }
+            
+            private void flush(ByteBuffer buffer, WritableByteChannel writableByteChannel) throws IOException {
+                ((Buffer)buffer).flip();
+                
+                while (buffer.hasRemaining()) {
+                    writableByteChannel.write(buffer);
+                }
+                
+                ((Buffer)buffer).clear();
             }
         }
 
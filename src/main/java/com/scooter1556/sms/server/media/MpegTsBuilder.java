@@ -0,0 +1,671 @@
+/*
+ * Author: Scott Ware <scoot.software@gmail.com>
+ * Copyright (c) 2015 Scott Ware
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.scooter1556.sms.server.media;
+
+import com.scooter1556.sms.server.service.LogService;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.mp4parser.Box;
+import org.mp4parser.IsoFile;
+import org.mp4parser.boxes.iso14496.part12.CompositionTimeToSample;
+import org.mp4parser.boxes.sampleentry.SampleEntry;
+import org.mp4parser.muxer.Edit;
+import org.mp4parser.muxer.FileRandomAccessSourceImpl;
+import org.mp4parser.muxer.Mp4TrackImpl;
+import org.mp4parser.muxer.Track;
+
+/**
+ * Remuxes the tracks of an MP4 segment into MPEG transport streams.
+ *
+ * The segment is parsed once on first use and each track is read from the
+ * same source, so all tracks of a segment should be remuxed with a single
+ * instance.
+ */
+public class MpegTsBuilder implements Closeable {
+
+    private static final String CLASS_NAME = "MpegTsBuilder";
+
+    private static final int PACKET_SIZE = 188;
+    private static final int PAT_PID = 0x0000;
+    private static final int PMT_PID = 0x1000;
+    private static final int ES_PID = 0x0100;
+    private static final int PROGRAM_NUMBER = 1;
+
+    // Matches the delay ffmpeg adds to transport stream timestamps
+    private static final long TIMESTAMP_OFFSET = 126000;
+    private static final long PCR_DELAY = 63000;
+
+    private static final int STREAM_TYPE_MP3 = 0x03;
+    private static final int STREAM_TYPE_AAC = 0x0F;
+    private static final int STREAM_TYPE_H264 = 0x1B;
+    private static final int STREAM_TYPE_H265 = 0x24;
+    private static final int STREAM_TYPE_AC3 = 0x81;
+    private static final int STREAM_TYPE_EAC3 = 0x87;
+
+    private static final byte[] START_CODE = {0x00, 0x00, 0x00, 0x01};
+    private static final byte[] H264_AUD = {0x09, (byte) 0xF0};
+    private static final byte[] H265_AUD = {0x46, 0x01, 0x50};
+
+    private final File segment;
+    private IsoFile isoFile = null;
+    private FileRandomAccessSourceImpl source = null;
+    private boolean unreadable = false;
+
+    // Configuration of the track being written
+    private int streamType;
+    private int streamId;
+    private byte[] registration = null;
+
+    // Video configuration
+    private int nalLengthSize = 4;
+    private final List<byte[]> parameterSets = new ArrayList<>();
+
+    // AAC configuration
+    private int aacProfile;
+    private int aacFrequencyIndex;
+    private int aacChannels;
+
+    private final int[] continuity = new int[0x2000];
+
+    public MpegTsBuilder(File segment) {
+        this.segment = segment;
+    }
+
+    /**
+     * Writes a track from the segment to an MPEG transport stream.
+     *
+     * @param trackId Index of the track in the segment.
+     * @param output File to write the transport stream to.
+     * @return False if the track can't be remuxed and an external process is required.
+     * @throws IOException If the segment can't be read or the output written.
+     */
+    public boolean build(int trackId, File output) throws IOException {
+        if(unreadable || !segment.isFile()) {
+            return false;
+        }
+
+        try {
+            if(isoFile == null) {
+                isoFile = new IsoFile(segment);
+                source = new FileRandomAccessSourceImpl(new RandomAccessFile(segment, "r"));
+            }
+
+            Track track = new Mp4TrackImpl(trackId + 1, isoFile, source, "segment");
+            reset();
+
+            if(track.getSamples().isEmpty() || !configure(track.getSampleEntries().get(0))) {
+                return false;
+            }
+
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+                writeTables(out);
+                writeSamples(track, out);
+            }
+        } catch(RuntimeException ex) {
+            // mp4parser reports malformed boxes with unchecked exceptions, leave the segment to an external process
+            LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Unable to remux track " + trackId + " of segment " + segment.getPath(), ex);
+            unreadable = isoFile == null;
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(source != null) {
+            source.close();
+            source = null;
+        }
+
+        if(isoFile != null) {
+            isoFile.close();
+            isoFile = null;
+        }
+    }
+
+    // Clear configuration left by the previous track
+    private void reset() {
+        streamType = 0;
+        streamId = 0;
+        registration = null;
+        nalLengthSize = 4;
+        parameterSets.clear();
+        Arrays.fill(continuity, 0);
+    }
+
+    //
+    // Determine stream parameters from the sample entry.
+    // Returns false if the codec is not supported.
+    //
+    boolean configure(SampleEntry entry) throws IOException {
+        switch(entry.getType()) {
+            case "avc1": case "avc3":
+                byte[] avcC = getChildBox(entry, "avcC");
+
+                if(avcC == null) {
+                    return false;
+                }
+
+                streamType = STREAM_TYPE_H264;
+                streamId = 0xE0;
+                parseAvcConfiguration(avcC);
+                return true;
+
+            case "hvc1": case "hev1":
+                byte[] hvcC = getChildBox(entry, "hvcC");
+
+                if(hvcC == null) {
+                    return false;
+                }
+
+                streamType = STREAM_TYPE_H265;
+                streamId = 0xE0;
+                parseHevcConfiguration(hvcC);
+                return true;
+
+            case "mp4a":
+                byte[] esds = getChildBox(entry, "esds");
+
+                if(esds == null) {
+                    return false;
+                }
+
+                streamId = 0xC0;
+                return parseEsDescriptor(esds);
+
+            case "ac-3":
+                streamType = STREAM_TYPE_AC3;
+                streamId = 0xBD;
+                registration = new byte[] {'A', 'C', '-', '3'};
+                return true;
+
+            case "ec-3":
+                streamType = STREAM_TYPE_EAC3;
+                streamId = 0xBD;
+                registration = new byte[] {'E', 'A', 'C', '3'};
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    // Returns the contents of a child box excluding the box header
+    private byte[] getChildBox(SampleEntry entry, String type) throws IOException {
+        for(Box box : entry.getBoxes()) {
+            if(box.getType().equals(type)) {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                box.getBox(Channels.newChannel(data));
+                byte[] bytes = data.toByteArray();
+                return Arrays.copyOfRange(bytes, 8, bytes.length);
+            }
+        }
+
+        return null;
+    }
+
+    private void parseAvcConfiguration(byte[] config) {
+        nalLengthSize = (config[4] & 0x03) + 1;
+
+        int offset = 5;
+        int count = config[offset++] & 0x1F;
+
+        for(int set = 0; set < 2; set++) {
+            for(int i = 0; i < count; i++) {
+                int length = ((config[offset] & 0xFF) << 8) | (config[offset + 1] & 0xFF);
+                parameterSets.add(Arrays.copyOfRange(config, offset + 2, offset + 2 + length));
+                offset += length + 2;
+            }
+
+            if(set == 0) {
+                count = config[offset++] & 0xFF;
+            }
+        }
+    }
+
+    private void parseHevcConfiguration(byte[] config) {
+        nalLengthSize = (config[21] & 0x03) + 1;
+
+        int offset = 23;
+        int arrays = config[22] & 0xFF;
+
+        for(int a = 0; a < arrays; a++) {
+            int count = ((config[offset + 1] & 0xFF) << 8) | (config[offset + 2] & 0xFF);
+            offset += 3;
+
+            for(int i = 0; i < count; i++) {
+                int length = ((config[offset] & 0xFF) << 8) | (config[offset + 1] & 0xFF);
+                parameterSets.add(Arrays.copyOfRange(config, offset + 2, offset + 2 + length));
+                offset += length + 2;
+            }
+        }
+    }
+
+    //
+    // Parse the elementary stream descriptor of an 'mp4a' sample entry.
+    // Only AAC (with a standard sample rate) and MP3 are supported.
+    //
+    private boolean parseEsDescriptor(byte[] esds) {
+        // Skip version and flags
+        int offset = 4;
+        int objectType = 0;
+
+        while(offset < esds.length) {
+            int tag = esds[offset++] & 0xFF;
+            int size = 0;
+
+            for(int i = 0; i < 4 && offset < esds.length; i++) {
+                int b = esds[offset++] & 0xFF;
+                size = (size << 7) | (b & 0x7F);
+
+                if((b & 0x80) == 0) {
+                    break;
+                }
+            }
+
+            switch(tag) {
+                case 0x03:
+                    // ES descriptor
+                    int flags = esds[offset + 2] & 0xFF;
+                    offset += 3;
+
+                    if((flags & 0x80) != 0) {
+                        offset += 2;
+                    }
+
+                    if((flags & 0x40) != 0) {
+                        offset += (esds[offset] & 0xFF) + 1;
+                    }
+
+                    if((flags & 0x20) != 0) {
+                        offset += 2;
+                    }
+
+                    break;
+
+                case 0x04:
+                    // Decoder configuration descriptor
+                    objectType = esds[offset] & 0xFF;
+                    offset += 13;
+
+                    if(objectType == 0x69 || objectType == 0x6B) {
+                        streamType = STREAM_TYPE_MP3;
+                        return true;
+                    }
+
+                    break;
+
+                case 0x05:
+                    // Decoder specific information
+                    if(objectType != 0x40 || size < 2) {
+                        return false;
+                    }
+
+                    aacProfile = ((esds[offset] & 0xFF) >> 3) - 1;
+                    aacFrequencyIndex = ((esds[offset] & 0x07) << 1) | ((esds[offset + 1] & 0xFF) >> 7);
+                    aacChannels = ((esds[offset + 1] & 0xFF) >> 3) & 0x0F;
+
+                    // ADTS can only signal the first four object types and indexed sample rates
+                    if(aacProfile < 0 || aacProfile > 3 || aacFrequencyIndex > 12) {
+                        return false;
+                    }
+
+                    streamType = STREAM_TYPE_AAC;
+                    return true;
+
+                default:
+                    offset += size;
+                    break;
+            }
+        }
+
+        return false;
+    }
+
+    void writeTables(OutputStream out) throws IOException {
+        // Program association table
+        byte[] pat = {
+            0x00, 0x00, 0x00,
+            (byte) (PROGRAM_NUMBER >> 8), (byte) PROGRAM_NUMBER, (byte) 0xC1, 0x00, 0x00,
+            (byte) (PROGRAM_NUMBER >> 8), (byte) PROGRAM_NUMBER,
+            (byte) (0xE0 | (PMT_PID >> 8)), (byte) PMT_PID
+        };
+
+        writeSection(out, PAT_PID, pat);
+
+        // Program map table
+        int esInfoLength = registration == null ? 0 : registration.length + 2;
+        ByteArrayOutputStream pmt = new ByteArrayOutputStream();
+        pmt.write(new byte[] {
+            0x02, 0x00, 0x00,
+            (byte) (PROGRAM_NUMBER >> 8), (byte) PROGRAM_NUMBER, (byte) 0xC1, 0x00, 0x00,
+            (byte) (0xE0 | (ES_PID >> 8)), (byte) ES_PID,
+            (byte) 0xF0, 0x00,
+            (byte) streamType,
+            (byte) (0xE0 | (ES_PID >> 8)), (byte) ES_PID,
+            (byte) (0xF0 | (esInfoLength >> 8)), (byte) esInfoLength
+        });
+
+        if(registration != null) {
+            pmt.write(0x05);
+            pmt.write(registration.length);
+            pmt.write(registration);
+        }
+
+        writeSection(out, PMT_PID, pmt.toByteArray());
+    }
+
+    // Completes the section length and CRC before writing the section in a single packet
+    private void writeSection(OutputStream out, int pid, byte[] section) throws IOException {
+        int length = section.length + 4 - 3;
+        section[1] = (byte) (0xB0 | (length >> 8));
+        section[2] = (byte) length;
+
+        byte[] packet = new byte[PACKET_SIZE];
+        Arrays.fill(packet, (byte) 0xFF);
+
+        packet[0] = 0x47;
+        packet[1] = (byte) (0x40 | (pid >> 8));
+        packet[2] = (byte) pid;
+        packet[3] = (byte) (0x10 | nextContinuity(pid));
+        packet[4] = 0x00;
+
+        System.arraycopy(section, 0, packet, 5, section.length);
+
+        int crc = crc32(section);
+        int offset = 5 + section.length;
+        packet[offset] = (byte) (crc >> 24);
+        packet[offset + 1] = (byte) (crc >> 16);
+        packet[offset + 2] = (byte) (crc >> 8);
+        packet[offset + 3] = (byte) crc;
+
+        out.write(packet);
+    }
+
+    private void writeSamples(Track track, OutputStream out) throws IOException {
+        long timescale = track.getTrackMetaData().getTimescale();
+        long[] durations = track.getSampleDurations();
+        long[] syncSamples = track.getSyncSamples();
+        List<CompositionTimeToSample.Entry> ctts = track.getCompositionTimeEntries();
+        boolean video = streamId == 0xE0;
+
+        // Determine presentation offset from edits
+        double start = 0;
+        long mediaTime = 0;
+
+        for(Edit edit : track.getEdits()) {
+            if(edit.getMediaTime() == -1) {
+                start += edit.getSegmentDuration();
+            } else {
+                mediaTime = edit.getMediaTime() * timescale / edit.getTimeScale();
+                break;
+            }
+        }
+
+        long decodeTime = 0;
+        int cttsIndex = 0;
+        int cttsRemaining = ctts == null || ctts.isEmpty() ? 0 : ctts.get(0).getCount();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        for(int i = 0; i < track.getSamples().size(); i++) {
+            long offset = 0;
+
+            if(cttsRemaining > 0) {
+                offset = ctts.get(cttsIndex).getOffset();
+
+                if(--cttsRemaining == 0 && ++cttsIndex < ctts.size()) {
+                    cttsRemaining = ctts.get(cttsIndex).getCount();
+                }
+            }
+
+            long dts = getTimestamp(start, decodeTime - mediaTime, timescale);
+            long pts = getTimestamp(start, decodeTime + offset - mediaTime, timescale);
+            boolean sync = syncSamples == null || Arrays.binarySearch(syncSamples, i + 1) >= 0;
+
+            ByteBuffer sample = track.getSamples().get(i).asByteBuffer();
+            payload.reset();
+
+            if(video) {
+                writeAccessUnit(payload, sample, sync);
+            } else {
+                if(streamType == STREAM_TYPE_AAC) {
+                    writeAdtsHeader(payload, sample.remaining());
+                }
+
+                writeBuffer(payload, sample);
+            }
+
+            writePes(out, payload.toByteArray(), pts, dts, sync && video);
+            decodeTime += durations[i];
+        }
+    }
+
+    private long getTimestamp(double start, long time, long timescale) {
+        return (TIMESTAMP_OFFSET + Math.round((start + (double) time / timescale) * 90000)) & 0x1FFFFFFFFL;
+    }
+
+    //
+    // Converts a length prefixed sample to Annex B, inserting an access unit delimiter
+    // and parameter sets ahead of key frames.
+    //
+    private void writeAccessUnit(ByteArrayOutputStream payload, ByteBuffer sample, boolean sync) {
+        boolean hevc = streamType == STREAM_TYPE_H265;
+
+        payload.write(START_CODE, 0, START_CODE.length);
+
+        if(hevc) {
+            payload.write(H265_AUD, 0, H265_AUD.length);
+        } else {
+            payload.write(H264_AUD, 0, H264_AUD.length);
+        }
+
+        if(sync) {
+            for(byte[] parameterSet : parameterSets) {
+                payload.write(START_CODE, 0, START_CODE.length);
+                payload.write(parameterSet, 0, parameterSet.length);
+            }
+        }
+
+        while(sample.remaining() > nalLengthSize) {
+            int length = 0;
+
+            for(int i = 0; i < nalLengthSize; i++) {
+                length = (length << 8) | (sample.get() & 0xFF);
+            }
+
+            length = Math.min(length, sample.remaining());
+
+            int header = sample.get(sample.position()) & 0xFF;
+            int type = hevc ? (header >> 1) & 0x3F : header & 0x1F;
+
+            // Skip existing access unit delimiters
+            if((hevc && type == 35) || (!hevc && type == 9)) {
+                sample.position(sample.position() + length);
+                continue;
+            }
+
+            ByteBuffer nal = sample.slice();
+            nal.limit(length);
+
+            payload.write(START_CODE, 0, START_CODE.length);
+            writeBuffer(payload, nal);
+
+            sample.position(sample.position() + length);
+        }
+    }
+
+    private void writeAdtsHeader(ByteArrayOutputStream payload, int size) {
+        int length = size + 7;
+
+        payload.write(0xFF);
+        payload.write(0xF1);
+        payload.write((aacProfile << 6) | (aacFrequencyIndex << 2) | (aacChannels >> 2));
+        payload.write(((aacChannels & 0x03) << 6) | (length >> 11));
+        payload.write((length >> 3) & 0xFF);
+        payload.write(((length & 0x07) << 5) | 0x1F);
+        payload.write(0xFC);
+    }
+
+    private void writeBuffer(ByteArrayOutputStream payload, ByteBuffer buffer) {
+        if(buffer.hasArray()) {
+            payload.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            payload.write(data, 0, data.length);
+        }
+    }
+
+    // Packetise an access unit, carrying the PCR in the first packet
+    void writePes(OutputStream out, byte[] data, long pts, long dts, boolean randomAccess) throws IOException {
+        boolean hasDts = pts != dts;
+        int headerLength = hasDts ? 10 : 5;
+        int pesLength = data.length + headerLength + 3;
+
+        byte[] header = new byte[9 + headerLength];
+        header[0] = 0x00;
+        header[1] = 0x00;
+        header[2] = 0x01;
+        header[3] = (byte) streamId;
+
+        // Video PES packets may exceed the maximum length so leave it unbounded
+        if(streamId != 0xE0 && pesLength <= 0xFFFF) {
+            header[4] = (byte) (pesLength >> 8);
+            header[5] = (byte) pesLength;
+        }
+
+        header[6] = (byte) 0x80;
+        header[7] = (byte) (hasDts ? 0xC0 : 0x80);
+        header[8] = (byte) headerLength;
+        writeTimestamp(header, 9, hasDts ? 0x30 : 0x20, pts);
+
+        if(hasDts) {
+            writeTimestamp(header, 14, 0x10, dts);
+        }
+
+        long pcr = (dts - PCR_DELAY) & 0x1FFFFFFFFL;
+        int total = header.length + data.length;
+        int written = 0;
+        boolean first = true;
+        byte[] packet = new byte[PACKET_SIZE];
+
+        while(written < total) {
+            int adaptationLength = first ? 8 : 0;
+            int space = PACKET_SIZE - 4 - adaptationLength;
+            int remaining = total - written;
+            int stuffing = 0;
+
+            if(remaining < space) {
+                stuffing = space - remaining;
+
+                // An adaptation field needs at least one byte for its length
+                if(adaptationLength == 0) {
+                    adaptationLength = Math.min(stuffing, 2);
+                    stuffing -= adaptationLength;
+                }
+            }
+
+            int size = Math.min(space - stuffing - (first ? 0 : adaptationLength), remaining);
+            int offset = 4;
+
+            packet[0] = 0x47;
+            packet[1] = (byte) ((first ? 0x40 : 0x00) | (ES_PID >> 8));
+            packet[2] = (byte) ES_PID;
+            packet[3] = (byte) ((adaptationLength > 0 ? 0x30 : 0x10) | nextContinuity(ES_PID));
+
+            if(adaptationLength > 0) {
+                packet[offset++] = (byte) (adaptationLength - 1 + stuffing);
+
+                if(adaptationLength > 1) {
+                    if(first) {
+                        packet[offset++] = (byte) (0x10 | (randomAccess ? 0x40 : 0x00));
+                        packet[offset++] = (byte) (pcr >> 25);
+                        packet[offset++] = (byte) (pcr >> 17);
+                        packet[offset++] = (byte) (pcr >> 9);
+                        packet[offset++] = (byte) (pcr >> 1);
+                        packet[offset++] = (byte) (((pcr & 0x01) << 7) | 0x7E);
+                        packet[offset++] = 0x00;
+                    } else {
+                        packet[offset++] = 0x00;
+                    }
+                }
+
+                for(int i = 0; i < stuffing; i++) {
+                    packet[offset++] = (byte) 0xFF;
+                }
+            }
+
+            // Copy payload from header and data
+            for(int i = 0; i < size; i++) {
+                int position = written + i;
+                packet[offset++] = position < header.length ? header[position] : data[position - header.length];
+            }
+
+            out.write(packet, 0, offset);
+            written += size;
+            first = false;
+        }
+    }
+
+    private void writeTimestamp(byte[] buffer, int offset, int marker, long timestamp) {
+        buffer[offset] = (byte) (marker | ((timestamp >> 29) & 0x0E) | 0x01);
+        buffer[offset + 1] = (byte) (timestamp >> 22);
+        buffer[offset + 2] = (byte) (((timestamp >> 14) & 0xFE) | 0x01);
+        buffer[offset + 3] = (byte) (timestamp >> 7);
+        buffer[offset + 4] = (byte) (((timestamp << 1) & 0xFE) | 0x01);
+    }
+
+    private int nextContinuity(int pid) {
+        int value = continuity[pid];
+        continuity[pid] = (value + 1) & 0x0F;
+        return value;
+    }
+
+    // MPEG-2 CRC32 used by PSI sections
+    static int crc32(byte[] data) {
+        int crc = 0xFFFFFFFF;
+
+        for(byte b : data) {
+            crc ^= (b & 0xFF) << 24;
+
+            for(int i = 0; i < 8; i++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+        }
+
+        return crc;
+    }
+}
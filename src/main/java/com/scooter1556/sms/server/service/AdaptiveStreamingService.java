@@ -46,9 +46,16 @@ import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -72,19 +79,66 @@ public class AdaptiveStreamingService {
     // The number of stream alternatives to transcode by default
     public static final Integer DEFAULT_STREAM_COUNT = 2;
 
+    // Time (milliseconds) to wait for further seeks before restarting a transcode
+    private static final long SEEK_DELAY = 500;
+
     @Autowired
     private TranscodeService transcodeService;
 
-    private final ArrayList<AdaptiveStreamingProcess> processes = new ArrayList<>();
+    // Processes, indexed by the jobs viewing them and by output key.
+    // Changes are made while holding the service lock so lookups never see a partially registered process.
+    private final Set<AdaptiveStreamingProcess> processes = ConcurrentHashMap.newKeySet();
+    private final Map<UUID, AdaptiveStreamingProcess> jobs = new ConcurrentHashMap<>();
+    private final Map<String, AdaptiveStreamingProcess> keys = new ConcurrentHashMap<>();
+
+    // Restarts waiting for seeking to settle, indexed by job
+    private final Map<UUID, Seek> seeks = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService seekScheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "SeekScheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public synchronized AdaptiveStreamingProcess initialise(Job job, int num) {
+        // Don't start a process for a job which has already ended
+        if(job.isEnded()) {
+            LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Job " + job.getId() + " has ended, not initialising adaptive streaming process.", null);
+            return null;
+        }
 
-    public AdaptiveStreamingProcess initialise(Job job, int num) {
         // Set offset
-        if(num > 0) {
-            job.getTranscodeProfile().setOffset(num * job.getTranscodeProfile().getSegmentDuration());
+        job.getTranscodeProfile().setOffset(job.getTranscodeProfile().getSegmentStart(num));
+
+        AdaptiveStreamingProcess process = getProcessById(job.getId());
+        String key = getProcessKey(job);
+
+        // Don't restart a process other jobs are still using
+        if(process != null && process.getViewerCount() > 1) {
+            detach(process, job.getId());
+            process = null;
+        }
+
+        // Attach to a process already producing the same output
+        AdaptiveStreamingProcess shared = getProcessByKey(key);
+
+        if(shared != null && shared != process) {
+            if(process != null) {
+                detach(process, job.getId());
+            }
+
+            attach(shared, job.getId(), num);
+
+            LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Job " + job.getId() + " attached to adaptive streaming process " + shared.getId() + " (" + shared.getViewerCount() + " viewers).", null);
+
+            return shared;
         }
 
+        // Processes have their own ID and stream directory as they can outlive the job which started them
+        UUID processId = process == null ? UUID.randomUUID() : process.getId();
+
         // Get transcode command
-        String[][] commands = transcodeService.getTranscodeCommand(job);
+        String[][] commands = transcodeService.getTranscodeCommand(job, processId);
 
         if(commands == null) {
             LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Failed to get transcode command for profile: " + job.getTranscodeProfile(), null);
@@ -92,14 +146,20 @@ public class AdaptiveStreamingService {
         }
 
         // Start transcoding
-        AdaptiveStreamingProcess process = getProcessById(job.getId());
-
         if(process == null) {
-            process = new AdaptiveStreamingProcess(job.getId());
+            process = new AdaptiveStreamingProcess(processId);
             processes.add(process);
         }
 
         // Update process with required information
+        if(process.getKey() != null) {
+            keys.remove(process.getKey(), process);
+        }
+
+        process.setKey(key);
+        keys.put(key, process);
+        process.setStreamKey(getStreamKey(job));
+        attach(process, job.getId(), num);
         process.setCommands(commands);
         process.setMediaElement(job.getMediaElement());
         process.setTranscodeProfile(job.getTranscodeProfile());
@@ -110,6 +170,76 @@ public class AdaptiveStreamingService {
         return process;
     }
 
+    //
+    // Restart the transcode for a job at a new position once seeking has settled.
+    // Seeks made in quick succession are coalesced into a single restart at the last position.
+    // The returned future completes with the process producing segments for the job, or null if the seek was superseded.
+    //
+    public synchronized CompletableFuture<AdaptiveStreamingProcess> seek(Job job, int num) {
+        cancelSeek(job.getId());
+
+        Seek seek = new Seek(num);
+        seek.task = seekScheduler.schedule(() -> restart(job, seek), SEEK_DELAY, TimeUnit.MILLISECONDS);
+        seeks.put(job.getId(), seek);
+
+        return seek.result;
+    }
+
+    //
+    // Returns the pending restart for a job, or null if there isn't one.
+    //
+    public CompletableFuture<AdaptiveStreamingProcess> getSeek(UUID id) {
+        Seek seek = seeks.get(id);
+        return seek == null ? null : seek.result;
+    }
+
+    private void restart(Job job, Seek seek) {
+        AdaptiveStreamingProcess process;
+
+        synchronized(this) {
+            // Superseded by a later seek
+            if(!seeks.remove(job.getId(), seek)) {
+                return;
+            }
+
+            process = getProcessById(job.getId());
+
+            // The transcode may have caught up with the position while waiting
+            if(process == null || !process.isProducing(seek.num)) {
+                LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Restarting transcode for job " + job.getId() + " at segment " + seek.num + ".", null);
+                process = initialise(job, seek.num);
+            }
+        }
+
+        seek.result.complete(process);
+    }
+
+    private void cancelSeek(UUID id) {
+        Seek seek = seeks.remove(id);
+
+        if(seek != null) {
+            seek.task.cancel(false);
+            seek.result.complete(null);
+        }
+    }
+
+    //
+    // Restart a suspended process from the segment its viewer last requested, keeping segments already finalised.
+    //
+    public synchronized AdaptiveStreamingProcess resume(Job job) {
+        AdaptiveStreamingProcess process = getProcessById(job.getId());
+
+        if(process == null || !process.isSuspended()) {
+            return process;
+        }
+
+        int num = process.getResumeNum();
+
+        LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Resuming adaptive streaming process for job " + job.getId() + " from segment " + num + ".", null);
+
+        return initialise(job, num);
+    }
+
     public DOMSource generateDashPlaylist(Job job, ClientProfile clientProfile) {
         if(job == null) {
             return null;
@@ -141,7 +271,7 @@ public class AdaptiveStreamingService {
             mpd.setAttribute("xmlns", "urn:mpeg:dash:schema:mpd:2011");
             mpd.setAttribute("xsi:schemaLocation", "urn:mpeg:DASH:schema:MPD:2011 DASH-MPD.xsd");
             mpd.setAttribute("profiles", "urn:mpeg:dash:profile:isoff-on-demand:2011");
-            mpd.setAttribute("minBufferTime", "PT"+ String.valueOf(job.getTranscodeProfile().getSegmentDuration()) + "S");
+            mpd.setAttribute("minBufferTime", "PT"+ String.valueOf(job.getTranscodeProfile().getSegmentStart(1)) + "S");
             mpd.setAttribute("type", "static");
             mpd.setAttribute("mediaPresentationDuration", "PT" + mediaElement.getDuration() + "S");
 
@@ -215,7 +345,7 @@ public class AdaptiveStreamingService {
                     representation.appendChild(segmentTemplate);
 
                     segmentTemplate.setAttribute("startNumber", "0");
-                    segmentTemplate.setAttribute("duration", String.valueOf(Math.round(profile.getSegmentDuration() * 1000)));
+                    setSegmentTiming(playlist, segmentTemplate, profile, mediaElement.getDuration());
                     segmentTemplate.setAttribute("timescale", "1000");
                     segmentTemplate.setAttribute("initialization", "init.mp4");
                     segmentTemplate.setAttribute("media", "$Number$.m4s");
@@ -309,7 +439,7 @@ public class AdaptiveStreamingService {
                     representation.appendChild(segmentTemplate);
 
                     segmentTemplate.setAttribute("startNumber", "0");
-                    segmentTemplate.setAttribute("duration", String.valueOf(Math.round(profile.getSegmentDuration() * 1000)));
+                    setSegmentTiming(playlist, segmentTemplate, profile, mediaElement.getDuration());
                     segmentTemplate.setAttribute("timescale", "1000");
                     segmentTemplate.setAttribute("initialization", "init.mp4");
                     segmentTemplate.setAttribute("media", "$Number$.m4s");
@@ -374,7 +504,7 @@ public class AdaptiveStreamingService {
                     representation.appendChild(segmentTemplate);
 
                     segmentTemplate.setAttribute("startNumber", "0");
-                    segmentTemplate.setAttribute("duration", String.valueOf(Math.round(profile.getSegmentDuration() * 1000)));
+                    setSegmentTiming(playlist, segmentTemplate, profile, mediaElement.getDuration());
                     segmentTemplate.setAttribute("timescale", "1000");
                     segmentTemplate.setAttribute("media", "$Number$" + "." + extension);
                 }
@@ -387,6 +517,39 @@ public class AdaptiveStreamingService {
         }
     }
 
+    //
+    // Segments of equal duration are described by the template, otherwise each run of segments is listed in a timeline.
+    //
+    private void setSegmentTiming(Document playlist, Element segmentTemplate, TranscodeProfile profile, double duration) {
+        if(profile.getInitialSegmentCount() == 0) {
+            segmentTemplate.setAttribute("duration", String.valueOf(Math.round(profile.getSegmentDuration() * 1000)));
+            return;
+        }
+
+        Element segmentTimeline = playlist.createElement("SegmentTimeline");
+        segmentTemplate.appendChild(segmentTimeline);
+
+        Element segment = null;
+        long previous = -1;
+        int repeat = 0;
+
+        for(int i = 0; profile.getSegmentStart(i) < duration; i++) {
+            long length = Math.round((Math.min(profile.getSegmentStart(i + 1), duration) - profile.getSegmentStart(i)) * 1000);
+
+            if(length == previous) {
+                segment.setAttribute("r", String.valueOf(++repeat));
+                continue;
+            }
+
+            segment = playlist.createElement("S");
+            segmentTimeline.appendChild(segment);
+            segment.setAttribute("d", String.valueOf(length));
+
+            previous = length;
+            repeat = 0;
+        }
+    }
+
     public void sendDashPlaylist(Job job, ClientProfile clientProfile, boolean head, HttpServletResponse response) throws IOException {
         try {
             // Get playlist
@@ -694,18 +857,13 @@ public class AdaptiveStreamingService {
             extension = "m4s";
         }
 
-        // Get Video Segments
-        for (int i = 0; i < Math.floor(mediaElement.getDuration() / job.getTranscodeProfile().getSegmentDuration()); i++) {
-            playlist.add("#EXTINF:" + job.getTranscodeProfile().getSegmentDuration().floatValue() + ",");
-            playlist.add(clientProfile.getUrl() + "/stream/segment/" + job.getSessionId() + "/" + mediaElement.getID() + "/" + type + "/" + extra + "/" + i + "." + extension);
-        }
+        // Get Video Segments, the final segment covers whatever remains
+        TranscodeProfile profile = job.getTranscodeProfile();
 
-        // Determine the duration of the final segment.
-        double remainder = mediaElement.getDuration() % job.getTranscodeProfile().getSegmentDuration();
-        if (remainder > 0) {
-            long i = Double.valueOf(Math.floor(mediaElement.getDuration() / job.getTranscodeProfile().getSegmentDuration())).longValue();
+        for (int i = 0; profile.getSegmentStart(i) < mediaElement.getDuration(); i++) {
+            double duration = Math.min(profile.getSegmentStart(i + 1), mediaElement.getDuration()) - profile.getSegmentStart(i);
 
-            playlist.add("#EXTINF:" + Precision.round(remainder, 1, BigDecimal.ROUND_HALF_UP) + ",");
+            playlist.add("#EXTINF:" + Precision.round(duration, 1, BigDecimal.ROUND_HALF_UP) + ",");
             playlist.add(clientProfile.getUrl() + "/stream/segment/" + job.getSessionId() + "/" + mediaElement.getID() + "/" + type + "/" + extra + "/" + i + "." + extension);
         }
 
@@ -774,53 +932,98 @@ public class AdaptiveStreamingService {
         LogService.getInstance().addLogEntry(type == null ? LogService.Level.DEBUG : LogService.Level.INSANE, CLASS_NAME, "\n************\nPlaylist\n************\n" + playlistWriter.toString(), null);
     }
 
-    public void addProcess(AdaptiveStreamingProcess process) {
+    public synchronized void addProcess(AdaptiveStreamingProcess process) {
         if(process != null) {
             processes.add(process);
         }
     }
 
+    //
+    // Returns the process producing segments for a job.
+    // This may be shared with other jobs streaming the same media with the same profile.
+    //
     public AdaptiveStreamingProcess getProcessById(UUID id) {
-        for(AdaptiveStreamingProcess process : processes) {
-            if(process.getId().compareTo(id) == 0) {
-                return process;
-            }
+        return id == null ? null : jobs.get(id);
+    }
+
+    private AdaptiveStreamingProcess getProcessByKey(String key) {
+        AdaptiveStreamingProcess process = keys.get(key);
+
+        if(process != null && !process.isSuspended() && process.getViewerCount() > 0) {
+            return process;
         }
 
         return null;
     }
 
-    public boolean isProcessAvailable(UUID id) {
-        return getProcessById(id) != null;
+    // Jobs with the same key produce identical output and can share a transcode process
+    private String getProcessKey(Job job) {
+        return getStreamKey(job) + ":" + job.getTranscodeProfile().getOffset();
     }
 
-    public void removeProcessById(UUID id) {
-        Iterator pItr = processes.iterator();
+    // Identifies segments produced for a job independent of the start position
+    private String getStreamKey(Job job) {
+        return job.getMediaElement().getID() + ":" + job.getTranscodeProfile().getOutputKey();
+    }
 
-        while (pItr.hasNext()) {
-            AdaptiveStreamingProcess process = (AdaptiveStreamingProcess) pItr.next();
+    // Add a job to a process
+    private void attach(AdaptiveStreamingProcess process, UUID job, int num) {
+        process.addViewer(job, num);
+        jobs.put(job, process);
+    }
 
+    // Remove a job from a process, ending the process if no other jobs are using it
+    private void detach(AdaptiveStreamingProcess process, UUID job) {
+        process.removeViewer(job);
+        jobs.remove(job, process);
+
+        if(process.getViewerCount() == 0) {
+            process.end();
+            unregister(process);
+        }
+    }
+
+    private void unregister(AdaptiveStreamingProcess process) {
+        processes.remove(process);
+
+        if(process.getKey() != null) {
+            keys.remove(process.getKey(), process);
+        }
+
+        jobs.values().removeIf(p -> p == process);
+    }
+
+    public boolean isProcessAvailable(UUID id) {
+        return getProcessById(id) != null;
+    }
+
+    public synchronized void removeProcessById(UUID id) {
+        for(AdaptiveStreamingProcess process : processes) {
             if(process.getId().compareTo(id) == 0) {
-                pItr.remove();
+                unregister(process);
                 break;
             }
         }
     }
 
-    public void suspendProcess(UUID id) {
+    public synchronized void suspendProcess(UUID id) {
+        cancelSeek(id);
+
         AdaptiveStreamingProcess process = getProcessById(id);
 
-        if(process != null) {
+        // Only suspend if no other jobs are using the process
+        if(process != null && process.getViewerCount() == 1) {
             process.suspend();
         }
     }
 
-    public void endProcess(UUID id) {
+    public synchronized void endProcess(UUID id) {
+        cancelSeek(id);
+
         AdaptiveStreamingProcess process = getProcessById(id);
 
         if(process != null) {
-            process.end();
-            removeProcessById(id);
+            detach(process, id);
         }
 
         // Check if we should clean temporary files
@@ -858,4 +1061,17 @@ public class AdaptiveStreamingService {
             tmpFile.delete();
         }
     }
+
+    //
+    // A restart waiting for seeking to settle.
+    //
+    private static class Seek {
+        private final int num;
+        private final CompletableFuture<AdaptiveStreamingProcess> result = new CompletableFuture<>();
+        private ScheduledFuture<?> task;
+
+        private Seek(int num) {
+            this.num = num;
+        }
+    }
 }
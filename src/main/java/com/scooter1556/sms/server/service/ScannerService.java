@@ -29,6 +29,7 @@ import com.scooter1556.sms.server.dao.SettingsDao;
 import com.scooter1556.sms.server.domain.MediaElement;
 import com.scooter1556.sms.server.domain.MediaElement.AudioStream;
 import com.scooter1556.sms.server.domain.MediaElement.DirectoryMediaType;
+import com.scooter1556.sms.server.domain.MediaElement.IndexEntry;
 import com.scooter1556.sms.server.domain.MediaElement.MediaElementType;
 import com.scooter1556.sms.server.domain.MediaElement.SubtitleStream;
 import com.scooter1556.sms.server.domain.MediaElement.VideoStream;
@@ -47,11 +48,18 @@ import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import static java.nio.file.FileVisitResult.CONTINUE;
-import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
 import static java.nio.file.FileVisitResult.TERMINATE;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
@@ -60,15 +68,29 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.io.FilenameUtils;
 import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -77,7 +99,7 @@ import org.springframework.stereotype.Service;
 
 @Service
 @EnableScheduling
-public class ScannerService implements DisposableBean {
+public class ScannerService implements InitializingBean, DisposableBean {
 
     private static final String CLASS_NAME = "MediaScannerService";
 
@@ -103,28 +125,63 @@ public class ScannerService implements DisposableBean {
     private SessionService sessionService;
 
     private static final String[] INFO_FILE_TYPES = {"nfo"};
+    private static final String[] DIRECTORY_INFO_FILE_NAMES = {"tvshow", "season", "movie"};
     private static final String[] EXCLUDED_FILE_NAMES = {"extras", "trailers"};
 
     private static final Pattern FILE_NAME = Pattern.compile("(.+)(\\s+[(\\[](\\d{4})[)\\]])$?");
+    private static final Pattern INODE = Pattern.compile("ino=(\\d+)");
+    
+    // Time to wait for file system activity to settle before updating the index (ms)
+    private static final long LIVE_INDEX_DELAY = 5000;
+    
+    // Number of pending media elements which triggers a database update during scanning
+    private static final int SCAN_BATCH_SIZE = 1000;
 
-    private long mTotal = 0, dTotal = 0;
+    private long mTotal = 0;
+    private final AtomicLong dTotal = new AtomicLong();
         
     // Media scanning thread pool
     ExecutorService scanningThreads = null;
     boolean abortScan = false;
     
-    // Deep scan executor
+    // Metadata parsing thread pool shared by all media folders
+    ThreadPoolExecutor parsingThreads = null;
+    
+    // Prevents live index updates running alongside media folder scans
+    private final ReentrantReadWriteLock scanLock = new ReentrantReadWriteLock();
+    
+    // Live indexing
+    private WatchService watchService = null;
+    private Thread watchThread = null;
+    private final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+    private final Map<Path, Long> pendingChanges = new HashMap<>();
+    private String liveIndexLog;
+    
+    // Deep scan thread pool
     ExecutorService deepScanExecutor = null;
-    boolean abortDeepScan = false;
+    volatile boolean abortDeepScan = false;
     
     // Logs
     String deepScanLog;
     
+    // Start live indexing if enabled
+    @Override
+    public void afterPropertiesSet() {
+        if(SettingsService.getInstance().getLiveIndexing()) {
+            startLiveIndexing();
+        }
+    }
+    
     // End scanning jobs on application exit
     @Override
     public void destroy() {
+        stopLiveIndexing();
         stopScanning();        
         stopDeepScan();
+        
+        if(parsingThreads != null) {
+            parsingThreads.shutdownNow();
+        }
     }
     
     @Scheduled(cron="#{config.mediaScanSchedule}")
@@ -209,7 +266,7 @@ public class ScannerService implements DisposableBean {
     // Returns the number of streams scanned so far.
     //
     public long getDeepScanCount() {
-        return dTotal;
+        return dTotal.get();
     }
 
     //
@@ -234,6 +291,9 @@ public class ScannerService implements DisposableBean {
         // Reset abort flag
         abortScan = false;
         
+        // Create metadata parsing threads
+        createParsingThreads();
+        
         // Log
         final String log = SettingsService.getInstance().getLogDirectory() + File.separator + "mediascanner-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("YYYYMMdd_HHmmss")) + ".log";
         
@@ -254,6 +314,35 @@ public class ScannerService implements DisposableBean {
         scanningThreads.shutdown();
     }
     
+    //
+    // Creates a bounded pool for metadata parsing.
+    // When the queue is full files are parsed by the directory walker which limits how far ahead it can get.
+    // The pool is resized in place rather than replaced as a live index walk may still be submitting to it.
+    //
+    private synchronized void createParsingThreads() {
+        int threads = SettingsService.getInstance().getScanThreads();
+        
+        if(parsingThreads != null && !parsingThreads.isShutdown()) {
+            if(threads > parsingThreads.getMaximumPoolSize()) {
+                parsingThreads.setMaximumPoolSize(threads);
+                parsingThreads.setCorePoolSize(threads);
+            } else if(threads < parsingThreads.getMaximumPoolSize()) {
+                parsingThreads.setCorePoolSize(threads);
+                parsingThreads.setMaximumPoolSize(threads);
+            } else {
+                return;
+            }
+            
+            LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Using " + threads + " threads for metadata parsing.", null);
+            return;
+        }
+        
+        parsingThreads = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        parsingThreads.allowCoreThreadTimeOut(true);
+        
+        LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Using " + threads + " threads for metadata parsing.", null);
+    }
+    
     //
     // Scans playlist in a separate thread.
     //
@@ -289,7 +378,9 @@ public class ScannerService implements DisposableBean {
     }
     
     //
-    // Performs a deep scan of media streams
+    // Performs a deep scan of media streams using a pool of frame parsers.
+    // Streams are queued in priority order and each is marked as deep scanned once complete,
+    // so a scan which is stopped resumes with the remaining streams next time.
     //
     private synchronized void deepScan(final List<VideoStream> streams) {   
         LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "deepScan()", null);
@@ -298,47 +389,68 @@ public class ScannerService implements DisposableBean {
         deepScanLog = SettingsService.getInstance().getLogDirectory() + File.separator + "deepscan-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("YYYYMMdd_HHmmss")) + ".log";
         
         // Reset counter
-        dTotal = 0;
+        dTotal.set(0);
         
-        // Create media scanning threads
-        deepScanExecutor = Executors.newSingleThreadExecutor();
-
-        deepScanExecutor.submit(() -> {
-            LogUtils.writeToLog(deepScanLog, "Found " + streams.size() + " streams to parse.", Level.DEBUG, true);
-            
-            for(VideoStream stream : streams) {
-                dTotal ++;
-                
-                LogUtils.writeToLog(deepScanLog, "Scanning stream " + stream.getStreamId() + " for media element with id " + stream.getMediaElementId(), Level.DEBUG, true);
-                
-                VideoStream update = frameParser.parse(stream);
-                
-                // Check for abort
-                if(abortDeepScan) {
-                    break;
-                }
-                
-                if(update != null) {
-                    mediaDao.updateVideoStream(update);
-                    LogUtils.writeToLog(deepScanLog, stream.toString(), Level.DEBUG, true);
+        // Create deep scan threads
+        int threads = Math.min(SettingsService.getInstance().getDeepScanThreads(), streams.size());
+        deepScanExecutor = Executors.newFixedThreadPool(threads);
+        
+        LogUtils.writeToLog(deepScanLog, "Found " + streams.size() + " streams to parse using " + threads + " threads.", Level.DEBUG, true);
+        
+        final AtomicInteger remaining = new AtomicInteger(streams.size());
+
+        // Submit parsing jobs for each stream
+        for(final VideoStream stream : streams) {
+            deepScanExecutor.submit(() -> {
+                try {
+                    // Check for abort
+                    if(abortDeepScan) {
+                        return;
+                    }
+                    
+                    deepScanStream(stream);
+                } finally {
+                    if(remaining.decrementAndGet() == 0 && !abortDeepScan) {
+                        LogService.getInstance().addLogEntry(LogService.Level.INFO, CLASS_NAME, "Deep scan completed successfully.", null);
+                    }
                 }
-                
-                LogUtils.writeToLog(deepScanLog, "Finished Scanning stream: " + stream.getStreamId() + " for media element with id " + stream.getMediaElementId(), Level.DEBUG, true);
-            }
-            
-            if(!abortDeepScan) {
-                LogService.getInstance().addLogEntry(LogService.Level.INFO, CLASS_NAME, "Deep scan completed successfully.", null);
-            }
-        });
+            });
+        }
         
+        // Shutdown thread pool so no further threads can be added
         deepScanExecutor.shutdown();
     }
     
-    public void stopDeepScan() {
+    //
+    // Parses a single video stream, called from the deep scan threads.
+    //
+    private void deepScanStream(VideoStream stream) {
+        dTotal.incrementAndGet();
+
+        LogUtils.writeToLog(deepScanLog, "Scanning stream " + stream.getStreamId() + " for media element with id " + stream.getMediaElementId(), Level.DEBUG, true);
+
+        VideoStream update = frameParser.parse(stream);
+
+        // Check for abort, results may be incomplete
+        if(abortDeepScan) {
+            return;
+        }
+
+        if(update != null) {
+            mediaDao.updateVideoStream(update);
+            mediaDao.setVideoStreamDeepScanned(update, new Timestamp(new Date().getTime()));
+            LogUtils.writeToLog(deepScanLog, update.toString(), Level.DEBUG, true);
+        }
+
+        LogUtils.writeToLog(deepScanLog, "Finished Scanning stream: " + stream.getStreamId() + " for media element with id " + stream.getMediaElementId(), Level.DEBUG, true);
+    }
+    
+    public synchronized void stopDeepScan() {
         LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "stopDeepScan()", null);
         
         if(isDeepScanning()) {
             abortDeepScan = true;
+            deepScanExecutor.shutdownNow();
             frameParser.stop();
             
             LogUtils.writeToLog(deepScanLog, "Deep scan terminated early!", Level.DEBUG, true);
@@ -357,6 +469,257 @@ public class ScannerService implements DisposableBean {
         LogService.getInstance().addLogEntry(LogService.Level.INFO, CLASS_NAME, "Scanning stopped.", null);
     }
     
+    //
+    // Live Indexing
+    //
+    
+    //
+    // Watches media folders for changes and updates affected directories.
+    //
+    public synchronized void startLiveIndexing() {
+        if(watchService != null) {
+            return;
+        }
+        
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException ex) {
+            LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Failed to start live indexing.", ex);
+            return;
+        }
+        
+        liveIndexLog = SettingsService.getInstance().getLogDirectory() + File.separator + "liveindex-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("YYYYMMdd_HHmmss")) + ".log";
+        
+        watchThread = new Thread(() -> watchMediaFolders(), "LiveIndex");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        
+        // Register watches for scanned media folders
+        List<MediaFolder> folders = settingsDao.getMediaFolders(null);
+        
+        if(folders != null) {
+            for(MediaFolder folder : folders) {
+                if(folder.getLastScanned() != null) {
+                    registerWatches(FileSystems.getDefault().getPath(folder.getPath()));
+                }
+            }
+        }
+        
+        LogService.getInstance().addLogEntry(LogService.Level.INFO, CLASS_NAME, "Live indexing started (Watching " + watchKeys.size() + " directories).", null);
+    }
+    
+    public synchronized void stopLiveIndexing() {
+        if(watchService == null) {
+            return;
+        }
+        
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Error closing watch service.", ex);
+        }
+        
+        watchThread.interrupt();
+        
+        watchService = null;
+        watchThread = null;
+        watchKeys.clear();
+        
+        synchronized(pendingChanges) {
+            pendingChanges.clear();
+        }
+        
+        LogService.getInstance().addLogEntry(LogService.Level.INFO, CLASS_NAME, "Live indexing stopped.", null);
+    }
+    
+    //
+    // Registers watches for a directory and all directories below it.
+    //
+    private void registerWatches(Path path) {
+        final WatchService watcher = watchService;
+        
+        if(watcher == null) {
+            return;
+        }
+        
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    watchKeys.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                    return CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return CONTINUE;
+                }
+            });
+        } catch (IOException | ClosedWatchServiceException ex) {
+            LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Unable to watch " + path.toString() + " for changes.", ex);
+        }
+    }
+    
+    //
+    // Collects file system events and processes them once they have settled.
+    //
+    private void watchMediaFolders() {
+        WatchService watcher = watchService;
+        
+        while(!Thread.currentThread().isInterrupted()) {
+            try {
+                WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+                
+                while(key != null) {
+                    processWatchEvents(key);
+                    key = watcher.poll();
+                }
+                
+                processPendingChanges();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            } catch (Exception ex) {
+                LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Error processing file system changes.", ex);
+            }
+        }
+    }
+    
+    private void processWatchEvents(WatchKey key) {
+        Path dir = watchKeys.get(key);
+        
+        if(dir == null) {
+            key.cancel();
+            return;
+        }
+        
+        boolean changed = false;
+        
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == OVERFLOW) {
+                changed = true;
+                continue;
+            }
+            
+            Path path = dir.resolve((Path) event.context());
+            
+            if(Files.isDirectory(path)) {
+                // Subdirectory changes are reported by their own watch
+                if(event.kind() == ENTRY_MODIFY) {
+                    continue;
+                }
+                
+                if(event.kind() == ENTRY_CREATE) {
+                    registerWatches(path);
+                }
+                
+                changed = true;
+            } else if(event.kind() == ENTRY_DELETE || MediaUtils.isMediaFile(path) || PlaylistUtils.isPlaylist(path) || FilenameUtils.isExtension(path.getFileName().toString().toLowerCase(), INFO_FILE_TYPES)) {
+                changed = true;
+            }
+        }
+        
+        // Directory no longer exists
+        if(!key.reset()) {
+            watchKeys.remove(key);
+        }
+        
+        if(changed) {
+            LogUtils.writeToLog(liveIndexLog, "Change detected in " + dir.toString(), Level.DEBUG, true);
+            
+            synchronized(pendingChanges) {
+                pendingChanges.put(dir, System.currentTimeMillis() + LIVE_INDEX_DELAY);
+            }
+        }
+    }
+    
+    //
+    // Rescans directories which have not changed for the debounce period.
+    //
+    private void processPendingChanges() {
+        Map<Path, Long> changes = new HashMap<>();
+        long now = System.currentTimeMillis();
+        
+        synchronized(pendingChanges) {
+            pendingChanges.forEach((path, time) -> {
+                if(time <= now) {
+                    changes.put(path, time);
+                }
+            });
+        }
+        
+        List<Path> paths = new ArrayList<>(changes.keySet());
+        
+        if(paths.isEmpty()) {
+            return;
+        }
+        
+        // Media folders are being scanned so try again later
+        if(!scanLock.writeLock().tryLock()) {
+            return;
+        }
+        
+        try {
+            // Remove changes unless further activity has been detected since
+            synchronized(pendingChanges) {
+                changes.forEach((path, time) -> pendingChanges.remove(path, time));
+            }
+            
+            // Remove paths which are covered by a parent directory
+            paths.sort((a, b) -> Integer.compare(a.getNameCount(), b.getNameCount()));
+            List<Path> scanPaths = new ArrayList<>();
+            
+            for(Path path : paths) {
+                if(scanPaths.stream().noneMatch(parent -> path.startsWith(parent))) {
+                    scanPaths.add(path);
+                }
+            }
+            
+            List<MediaFolder> folders = settingsDao.getMediaFolders(null);
+            
+            if(folders == null) {
+                return;
+            }
+            
+            abortScan = false;
+            createParsingThreads();
+            
+            for(Path path : scanPaths) {
+                MediaFolder folder = getMediaFolderForPath(folders, path);
+                
+                // Only process media folders which have been scanned
+                if(folder == null || folder.getLastScanned() == null) {
+                    continue;
+                }
+                
+                // Find the closest directory which still exists
+                Path scanPath = path;
+                
+                while(!Files.isDirectory(scanPath) && scanPath.startsWith(folder.getPath())) {
+                    scanPath = scanPath.getParent();
+                }
+                
+                if(!scanPath.startsWith(folder.getPath())) {
+                    continue;
+                }
+                
+                LogUtils.writeToLog(liveIndexLog, "Updating index for " + scanPath.toString(), Level.DEBUG, true);
+                scanMediaPath(folder, scanPath, liveIndexLog);
+            }
+        } finally {
+            scanLock.writeLock().unlock();
+        }
+    }
+    
+    private MediaFolder getMediaFolderForPath(List<MediaFolder> folders, Path path) {
+        for(MediaFolder folder : folders) {
+            if(path.startsWith(folder.getPath())) {
+                return folder;
+            }
+        }
+        
+        return null;
+    }
+    
     private void scanPlaylist(Playlist playlist) {
         // Check this is a file based playlist
         if(playlist.getPath() == null || playlist.getPath().isEmpty()) {
@@ -387,51 +750,74 @@ public class ScannerService implements DisposableBean {
     
     private void scanMediaFolder(MediaFolder folder, String log) {
         Path path = FileSystems.getDefault().getPath(folder.getPath());
-        ParseFiles fileParser = new ParseFiles(folder, log);
+        
+        // Wait for any live index updates to complete
+        scanLock.readLock().lock();
+        
+        try {
+            scanMediaPath(folder, path, log);
+        } finally {
+            scanLock.readLock().unlock();
+        }
+        
+        // Watch for changes in this media folder if it is not already being watched
+        if(watchService != null && !abortScan && !watchKeys.containsValue(path)) {
+            registerWatches(path);
+        }
+    }
+    
+    //
+    // Scans a media folder or a directory within it.
+    // Media folder statistics are only updated when the whole folder is scanned.
+    //
+    private void scanMediaPath(MediaFolder folder, Path path, String log) {
+        boolean isRoot = path.toString().equals(folder.getPath());
+        ParseFiles fileParser = new ParseFiles(folder, path, log);
 
         try {
+            // Load index of existing media elements for this path
+            if(!fileParser.loadIndex()) {
+                LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Failed to load media index for " + path.toString(), null);
+                return;
+            }
+            
             // Start Scan directory
-            LogService.getInstance().addLogEntry(LogService.Level.INFO, CLASS_NAME, "Scanning media folder " + folder.getPath(), null);
+            LogService.getInstance().addLogEntry(isRoot ? LogService.Level.INFO : LogService.Level.DEBUG, CLASS_NAME, "Scanning media folder " + path.toString(), null);
             Files.walkFileTree(path, fileParser);
             
+            // Release media index
+            fileParser.releaseIndex();
+            
             // Check if we should abort
             if(abortScan) {
                 return;
             }
 
-            // Add new media elements in database
-            if(!fileParser.getNewMediaElements().isEmpty()) {
-                mediaDao.createMediaElements(fileParser.getNewMediaElements());
-            }
-
-            // Update existing media elements in database
-            if(!fileParser.getUpdatedMediaElements().isEmpty()) {
-                mediaDao.updateMediaElementsByID(fileParser.getUpdatedMediaElements());
-            }
+            // Write remaining changes to database
+            fileParser.flush();
             
-            // Add media streams to database
-            mediaDao.createVideoStreams(fileParser.getVideoStreams());
-            mediaDao.createAudioStreams(fileParser.getAudioStreams());
-            mediaDao.createSubtitleStreams(fileParser.getSubtitleStreams());
-            
-            // Add new playlists
-            if(!fileParser.getNewPlaylists().isEmpty()) {
-                for(Playlist playlist : fileParser.getNewPlaylists()) {
-                    mediaDao.createPlaylist(playlist);
-                }
+            // Entries which failed to update would appear to have been removed
+            if(fileParser.isFailed()) {
+                LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Failed to update database for " + path.toString() + ", removed media will be processed on the next scan.", null);
+                return;
             }
             
-            // Update existing playlists
-            if(!fileParser.getUpdatedPlaylists().isEmpty()) {                
-                for(Playlist playlist : fileParser.getUpdatedPlaylists()) {
-                    mediaDao.updatePlaylistLastScanned(playlist.getID(), fileParser.getScanTime());
+            // Remove files which no longer exist
+            mediaDao.removeDeletedMediaElements(path.toString(), fileParser.getScanTime());
+            mediaDao.removeDeletedPlaylists(path.toString(), fileParser.getScanTime());
+            
+            // Partial scans are complete at this point
+            if(!isRoot) {
+                // Remove the directory itself if it no longer has any content
+                if(fileParser.getEmptyDirectory() != null) {
+                    LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Removing empty directory " + path.toString(), null);
+                    mediaDao.removeMediaElement(fileParser.getEmptyDirectory());
                 }
+                
+                LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "Finished scanning " + path.toString() + " (Items Scanned: " + fileParser.getTotal() + ")", null);
+                return;
             }
             
-            // Remove files which no longer exist
-            mediaDao.removeDeletedMediaElements(folder.getPath(), fileParser.getScanTime());
-            mediaDao.removeDeletedPlaylists(folder.getPath(), fileParser.getScanTime());
-            
             // Update folder statistics
             folder.setFolders(fileParser.getFolders());
             folder.setFiles(fileParser.getFiles());
@@ -459,8 +845,10 @@ public class ScannerService implements DisposableBean {
 
             LogService.getInstance().addLogEntry(LogService.Level.INFO, CLASS_NAME, "Finished scanning media folder " + folder.getPath() + " (Items Scanned: " + fileParser.getTotal() + ", Folders: " + fileParser.getFolders() + ", Files: " + fileParser.getFiles() + ", Playlists: " + fileParser.getPlaylists() + ")", null);
         } catch (Exception ex) {
-            LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Error scanning media folder " + folder.getPath(), ex);
-        }       
+            LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Error scanning media folder " + path.toString(), ex);
+        } finally {
+            fileParser.releaseIndex();
+        }
     }
 
     private class ParseFiles extends SimpleFileVisitor<Path> {
@@ -468,15 +856,20 @@ public class ScannerService implements DisposableBean {
         private final Timestamp scanTime = new Timestamp(new Date().getTime());
         
         private final MediaFolder folder;
-        private final Deque<MediaElement> directories = new ArrayDeque<>();
-        private final Deque<Deque<MediaElement>> directoryElements = new ArrayDeque<>();
+        private final Path root;
+        private final Map<String, IndexEntry> index = new HashMap<>();
+        private final Deque<ScanDirectory> directories = new ArrayDeque<>();
         private final Deque<NFOData> nfoData = new ArrayDeque<>();
         private final HashSet<Path> directoriesToUpdate = new HashSet<>();
+        private final Map<Path, Boolean> mediaDirectories = new HashMap<>();
+        private boolean failed = false;
         
-        private boolean directoryChanged = false;
+        // Element for the scanned directory if it no longer has any content
+        private UUID emptyDirectory = null;
 
         private final List<MediaElement> newElements;
         private final List<MediaElement> updatedElements;
+        private final List<IndexEntry> scannedElements;
         private final List<Playlist> newPlaylists;
         private final List<Playlist> updatedPlaylists;
         private final List<VideoStream> videoStreams;
@@ -485,13 +878,15 @@ public class ScannerService implements DisposableBean {
         
         private long audio, video, playlists, folders;
         
-        public ParseFiles(MediaFolder folder, String log) {
+        public ParseFiles(MediaFolder folder, Path root, String log) {
             this.folder = folder;
+            this.root = root;
             this.log = log;
             
             // Initialise Variables
             newElements = new ArrayList<>();
             updatedElements = new ArrayList<>();
+            scannedElements = new ArrayList<>();
             newPlaylists = new ArrayList<>();
             updatedPlaylists = new ArrayList<>();
             videoStreams = new ArrayList<>();
@@ -503,6 +898,106 @@ public class ScannerService implements DisposableBean {
             video = 0;
             playlists = 0;
         }
+        
+        //
+        // Loads an index of existing media elements for the path being scanned.
+        //
+        public boolean loadIndex() {
+            List<IndexEntry> entries = mediaDao.getMediaElementIndex(root.toString());
+            
+            if(entries == null) {
+                return false;
+            }
+            
+            for(IndexEntry entry : entries) {
+                index.put(entry.getPath(), entry);
+            }
+            
+            LogUtils.writeToLog(log, "Loaded " + index.size() + " index entries for " + root.toString(), Level.DEBUG, true);
+            
+            return true;
+        }
+        
+        //
+        // Writes pending changes to the database in a single transaction and releases them.
+        // Media elements are written before their streams which reference them.
+        //
+        public void flush() {
+            boolean result = mediaDao.executeInTransaction(() -> {
+                if(!newElements.isEmpty() && !mediaDao.createMediaElements(newElements)) {
+                    return false;
+                }
+                
+                if(!updatedElements.isEmpty() && !mediaDao.updateMediaElementsByID(updatedElements)) {
+                    return false;
+                }
+                
+                if(!scannedElements.isEmpty() && !mediaDao.updateIndexEntries(scannedElements)) {
+                    return false;
+                }
+                
+                if(!videoStreams.isEmpty() && !mediaDao.createVideoStreams(videoStreams)) {
+                    return false;
+                }
+                
+                if(!audioStreams.isEmpty() && !mediaDao.createAudioStreams(audioStreams)) {
+                    return false;
+                }
+                
+                if(!subtitleStreams.isEmpty() && !mediaDao.createSubtitleStreams(subtitleStreams)) {
+                    return false;
+                }
+                
+                for(Playlist playlist : newPlaylists) {
+                    if(!mediaDao.createPlaylist(playlist)) {
+                        return false;
+                    }
+                }
+                
+                for(Playlist playlist : updatedPlaylists) {
+                    if(!mediaDao.updatePlaylistLastScanned(playlist.getID(), scanTime)) {
+                        return false;
+                    }
+                }
+                
+                return true;
+            });
+            
+            if(!result) {
+                failed = true;
+                LogUtils.writeToLog(log, "Failed to write " + (newElements.size() + updatedElements.size() + scannedElements.size()) + " media elements to the database.", Level.ERROR, true);
+            }
+            
+            newElements.clear();
+            updatedElements.clear();
+            scannedElements.clear();
+            videoStreams.clear();
+            audioStreams.clear();
+            subtitleStreams.clear();
+            newPlaylists.clear();
+            updatedPlaylists.clear();
+        }
+        
+        //
+        // Returns whether any database updates have failed during the scan.
+        //
+        public boolean isFailed() {
+            return failed;
+        }
+        
+        //
+        // Returns the ID of the scanned directory's media element if it no longer contains media or playlists.
+        //
+        public UUID getEmptyDirectory() {
+            return emptyDirectory;
+        }
+        
+        //
+        // Releases the media index once scanning is complete.
+        //
+        public void releaseIndex() {
+            index.clear();
+        }
 
         @Override
         public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attr) {
@@ -511,20 +1006,14 @@ public class ScannerService implements DisposableBean {
                 return TERMINATE;
             }
             
-            // Check if we need to scan this directory
-            if(!MediaUtils.containsMedia(dir.toFile(), true) && !PlaylistUtils.containsPlaylists(dir.toFile())) {
-                LogUtils.writeToLog(log, "Skipping directory " + dir.toString(), Level.DEBUG, true);
-                return SKIP_SUBTREE;
-            }
-            
             LogUtils.writeToLog(log, "Parsing directory " + dir.toString(), Level.DEBUG, true);
             
             // Initialise variables
-            directoryChanged = false;
-            directoryElements.add(new ArrayDeque<>());
+            ScanDirectory directory = new ScanDirectory();
+            directories.add(directory);
             
             // Determine if this directory has changed
-            directoryChanged = folder.getLastScanned() == null || new Timestamp(attr.lastModifiedTime().toMillis()).after(folder.getLastScanned());
+            directory.changed = folder.getLastScanned() == null || new Timestamp(attr.lastModifiedTime().toMillis()).after(folder.getLastScanned());
             
             // If this is the root directory procede without processing
             if(dir.toString().equals(folder.getPath())) {
@@ -532,28 +1021,27 @@ public class ScannerService implements DisposableBean {
             }
                 
             // Check if directory already has an associated media element
-            MediaElement directory = mediaDao.getMediaElementByPath(dir.toString());
+            directory.entry = index.get(dir.toString());
 
-            if (directory == null) {
-                directory = getMediaElementFromPath(dir, attr);
-                directory.setType(MediaElementType.DIRECTORY);
+            if (directory.entry == null) {
+                directory.element = getMediaElementFromPath(dir, attr);
+                directory.element.setType(MediaElementType.DIRECTORY);
+            } else if(directory.changed) {
+                directory.element = mediaDao.getMediaElementByID(directory.entry.getID());
             }
 
-            if(directoryChanged || directory.getLastScanned().equals(scanTime)) {
+            if(directory.element != null) {
                 // Add directory to update list
                 directoriesToUpdate.add(dir);
                 
                 // Parse file name for media element attributes
-                directory = parseFileName(dir, directory);
+                directory.element = parseFileName(dir, directory.element);
                 
                 // Determine if the directory should be excluded from categorised lists
                 if (isExcluded(dir.getFileName())) {
-                    directory.setExcluded(true);
+                    directory.element.setExcluded(true);
                 }
             }
-            
-            // Add directory to list
-            directories.add(directory);
 
             return CONTINUE;
         }
@@ -569,65 +1057,65 @@ public class ScannerService implements DisposableBean {
             if(MediaUtils.isMediaFile(file)) {
                 LogUtils.writeToLog(log, "Parsing file " + file.toString(), Level.DEBUG, true);
                 
+                // Directory contains media
+                directories.peekLast().media = true;
+                directories.peekLast().content = true;
+                
                 // Update statistics
                 mTotal++;
                 
                 // Check if media file already has an associated media element
-                MediaElement mediaElement = mediaDao.getMediaElementByPath(file.toString());
-
-                if (mediaElement == null) {
-                    mediaElement = getMediaElementFromPath(file, attr);
-                    mediaElement.setFormat(MediaUtils.getSMSContainer(FilenameUtils.getExtension(file.toString())));
-                }
+                IndexEntry entry = index.get(file.toString());
                 
-                // Determine if we need to process the file
-                if(folder.getLastScanned() == null || new Timestamp(attr.lastModifiedTime().toMillis()).after(folder.getLastScanned()) || mediaElement.getLastScanned().equals(scanTime)) {
-                    LogUtils.writeToLog(log, "Processing file " + file.toString(), Level.DEBUG, true);
-                    
-                    // Add parent directory to update list
-                    directoriesToUpdate.add(file.getParent());
-                                        
-                    // Parse file name for media element attributes
-                    mediaElement = parseFileName(file.getFileName(), mediaElement);
-                    mediaElement.setSize(attr.size());
-                    
-                    // Remove existing media streams and parse Metadata
-                    mediaDao.removeStreamsByMediaElementId(mediaElement.getID());
-                    metadataParser.parse(mediaElement, log);
-                    
-                    // If we don't support this media file move on...
-                    if(mediaElement.getType() == MediaElementType.NONE) {
-                        LogUtils.writeToLog(log, "No media streams found for file " + file.toString(), Level.DEBUG, true);
-                        return CONTINUE;
-                    }
-                    
-                    // Add streams to update lists
-                    if(mediaElement.getVideoStreams() != null && !mediaElement.getVideoStreams().isEmpty()) {
-                        videoStreams.addAll(mediaElement.getVideoStreams());
-                    }
+                // If the file is unchanged there is nothing more to do
+                if(entry != null && !isModified(entry, attr)) {
+                    entry.setLastModified(new Timestamp(attr.lastModifiedTime().toMillis()));
+                    entry.setInode(getInode(attr));
+                    directories.peekLast().unchanged.add(entry);
                     
-                    if(mediaElement.getAudioStreams() != null && !mediaElement.getAudioStreams().isEmpty()) {
-                        audioStreams.addAll(mediaElement.getAudioStreams());
+                    // Update counters
+                    if(entry.getType() == MediaElementType.AUDIO) {
+                        audio++;
+                    } else if(entry.getType() == MediaElementType.VIDEO) {
+                        video++;
                     }
                     
-                    if(mediaElement.getSubtitleStreams() != null && !mediaElement.getSubtitleStreams().isEmpty()) {
-                        subtitleStreams.addAll(mediaElement.getSubtitleStreams());
-                    }
+                    return CONTINUE;
                 }
                 
-                // Add media element to list
-                directoryElements.peekLast().add(mediaElement);
+                MediaElement mediaElement = null;
                 
-                // Update counters
-                if(mediaElement.getType() == MediaElementType.AUDIO) {
-                    audio++;
-                } else if(mediaElement.getType() == MediaElementType.VIDEO) {
-                    video++;
+                if(entry != null) {
+                    mediaElement = mediaDao.getMediaElementByID(entry.getID());
+                }
+
+                if (mediaElement == null) {
+                    mediaElement = getMediaElementFromPath(file, attr);
+                    mediaElement.setFormat(MediaUtils.getSMSContainer(FilenameUtils.getExtension(file.toString())));
                 }
                 
+                LogUtils.writeToLog(log, "Processing file " + file.toString(), Level.DEBUG, true);
+                
+                // Add parent directory to update list
+                directoriesToUpdate.add(file.getParent());
+                                    
+                // Parse file name for media element attributes
+                mediaElement = parseFileName(file.getFileName(), mediaElement);
+                mediaElement.setSize(attr.size());
+                mediaElement.setLastModified(new Timestamp(attr.lastModifiedTime().toMillis()));
+                mediaElement.setInode(getInode(attr));
+                
+                // Parse metadata in the background, results are collected when the directory is complete
+                final MediaElement element = mediaElement;
+                final boolean exists = entry != null;
+                
+                directories.peekLast().pending.add(parsingThreads.submit(() -> parseMetadata(element, exists)));
             } else if(PlaylistUtils.isPlaylist(file)) {
                 LogUtils.writeToLog(log, "Parsing playlist " + file.toString(), Level.DEBUG, true);
                 
+                // Directory contains playlists
+                directories.peekLast().content = true;
+                
                 // Update statistics
                 mTotal++;
                 playlists++;
@@ -650,9 +1138,13 @@ public class ScannerService implements DisposableBean {
                 }
             } else if(isInfoFile(file)) {
                 // Determine if we need to parse this file
-                if(directoryChanged || folder.getLastScanned() == null || new Timestamp(attr.lastModifiedTime().toMillis()).after(folder.getLastScanned())) {
+                if(directories.peekLast().changed || folder.getLastScanned() == null || new Timestamp(attr.lastModifiedTime().toMillis()).after(folder.getLastScanned())) {
                     LogUtils.writeToLog(log, "Processing file " + file.toString(), Level.DEBUG, true);
-                    nfoData.add(nfoParser.parse(file));
+                    NFOData data = nfoParser.parse(file);
+                    
+                    if(data != null) {
+                        nfoData.add(data);
+                    }
                 }
             }
             
@@ -666,52 +1158,112 @@ public class ScannerService implements DisposableBean {
                 return TERMINATE;
             }
             
+            // Retrieve directory from list
+            ScanDirectory scanDirectory = directories.removeLast();
+            
+            // Wait for metadata parsing of child elements to complete
+            for(Future<MediaElement> result : scanDirectory.pending) {
+                MediaElement mediaElement;
+                
+                try {
+                    mediaElement = result.get();
+                } catch(InterruptedException ex) {
+                    return TERMINATE;
+                } catch(ExecutionException ex) {
+                    LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Error parsing metadata in directory " + dir.toString(), ex);
+                    continue;
+                }
+                
+                if(mediaElement != null) {
+                    addMediaElement(scanDirectory, mediaElement);
+                }
+            }
+            
+            // Check for abort
+            if(abortScan) {
+                return TERMINATE;
+            }
+            
+            // Get NFO data for directory indexed by normalised file name
+            Map<String, NFOData> dirData = new TreeMap<>();
+            
+            while(nfoData.peekLast() != null && nfoData.peekLast().getPath().getParent().equals(dir)) {
+                NFOData data = nfoData.removeLast();
+                dirData.put(getInfoKey(FilenameUtils.getBaseName(data.getPath().toString())), data);
+            }
+            
+            // Directories without media, playlists or subdirectories containing them are not indexed
+            if(!scanDirectory.content) {
+                LogUtils.writeToLog(log, "Skipping directory " + dir.toString(), Level.DEBUG, true);
+                
+                // Partial scans do not cover the element for the directory being scanned
+                if(dir.equals(root) && scanDirectory.entry != null) {
+                    emptyDirectory = scanDirectory.entry.getID();
+                }
+                
+                return CONTINUE;
+            }
+            
+            // Parent directory has content
+            if(!directories.isEmpty()) {
+                directories.peekLast().content = true;
+            }
+            
             // Update statistics
             mTotal++;
             folders++;
             
-            MediaElement directory = null;
-            Deque<MediaElement> dirElements;
-            Deque<NFOData> dirData = new ArrayDeque<>();
+            // Determine if the directory element needs to be updated
+            boolean updateDirectory = directoriesToUpdate.contains(dir) && (scanDirectory.element != null || scanDirectory.entry != null);
             
-            // Retrieve directory from list
-            if(!directories.isEmpty()) {
-                directory = directories.removeLast();
+            if(updateDirectory && scanDirectory.element == null) {
+                scanDirectory.element = mediaDao.getMediaElementByID(scanDirectory.entry.getID());
+                updateDirectory = scanDirectory.element != null;
             }
             
-            // Get child elements for directory
-            dirElements = directoryElements.removeLast();
-            
-            // Get NFO data for directory
-            if(!nfoData.isEmpty()) {
-                while(nfoData.peekLast() != null && nfoData.peekLast().getPath().getParent().equals(dir)) {
-                    dirData.add(nfoData.removeLast());
+            // Unchanged child elements are only retrieved in full if they are required
+            if(!scanDirectory.unchanged.isEmpty()) {
+                if(updateDirectory || !dirData.isEmpty()) {
+                    loadUnchangedElements(dir, scanDirectory);
+                }
+                
+                for(IndexEntry entry : scanDirectory.unchanged) {
+                    entry.setLastScanned(scanTime);
+                    scannedElements.add(entry);
                 }
             }
             
-            // Process child media elements
-            for(MediaElement element : dirElements) {
-                if(!dirData.isEmpty()) {
-                    boolean dataFound = false;
+            MediaElement directory = scanDirectory.element;
+            Deque<MediaElement> dirElements = scanDirectory.elements;
+            
+            // Match file specific NFO data to child media elements
+            Map<MediaElement, NFOData> elementData = new HashMap<>();
+            
+            if(!dirData.isEmpty()) {
+                for(MediaElement element : dirElements) {
+                    NFOData data = dirData.remove(getInfoKey(FilenameUtils.getBaseName(element.getPath())));
                     
-                    // Test for file specific data
-                    for(NFOData test : dirData) {
-                        if(test.getPath().getFileName().toString().contains(element.getTitle())) {
-                            LogUtils.writeToLog(log, "Parsing NFO file " + test.getPath(), Level.DEBUG, true);
-                            nfoParser.updateMediaElement(element, test);
-                            dirData.remove(test);
-                            dataFound = true;
-                            break;  
-                        }
+                    if(data == null && element.getTitle() != null) {
+                        data = dirData.remove(getInfoKey(element.getTitle()));
                     }
                     
-                    // Use generic data for directory
-                    if(!dataFound) {
-                        NFOData data = dirData.getFirst();
-                        LogUtils.writeToLog(log, "Parsing NFO file " + data.getPath(), Level.DEBUG, true);
-                        nfoParser.updateMediaElement(element, data);
+                    if(data != null) {
+                        elementData.put(element, data);
                     }
                 }
+            }
+            
+            // Generic NFO data for the directory
+            NFOData directoryData = getDirectoryInfo(dir, dirData);
+            
+            // Process child media elements
+            for(MediaElement element : dirElements) {
+                NFOData data = elementData.getOrDefault(element, directoryData);
+                
+                if(data != null) {
+                    LogUtils.writeToLog(log, "Parsing NFO file " + data.getPath(), Level.DEBUG, true);
+                    nfoParser.updateMediaElement(element, data);
+                }
                 
                 // Set media elements to add or update
                 if(element.getLastScanned().equals(scanTime)) {
@@ -725,11 +1277,11 @@ public class ScannerService implements DisposableBean {
             }
             
             // Update directory element if necessary
-            if(directory != null && directoriesToUpdate.contains(dir)) {
+            if(updateDirectory) {
                 LogUtils.writeToLog(log, "Processing directory " + dir.toString(), Level.DEBUG, true);
                 
-                if(!dirData.isEmpty()) {
-                    nfoParser.updateMediaElement(directory, dirData.removeFirst());
+                if(directoryData != null) {
+                    nfoParser.updateMediaElement(directory, directoryData);
                 }
                 
                 // Determine directory media type
@@ -800,10 +1352,18 @@ public class ScannerService implements DisposableBean {
                     directory.setLastScanned(scanTime);
                     updatedElements.add(directory);
                 }                
+            } else if(scanDirectory.entry != null) {
+                scanDirectory.entry.setLastScanned(scanTime);
+                scannedElements.add(scanDirectory.entry);
             }
             
             LogUtils.writeToLog(log, "Finished parsing directory " + dir.toString(), Level.DEBUG, true);
             
+            // Write changes to database in batches to limit memory use
+            if(newElements.size() + updatedElements.size() + scannedElements.size() >= SCAN_BATCH_SIZE) {
+                flush();
+            }
+            
             return CONTINUE;
         }
 
@@ -816,11 +1376,155 @@ public class ScannerService implements DisposableBean {
         //
         // Helper Functions
         //
+        
+        // Parse metadata for a media element, called from the metadata parsing threads
+        private MediaElement parseMetadata(MediaElement mediaElement, boolean exists) {
+            // Check for abort
+            if(abortScan) {
+                return null;
+            }
+            
+            // Remove existing media streams and parse Metadata
+            if(exists) {
+                mediaDao.removeStreamsByMediaElementId(mediaElement.getID());
+            }
+
+            metadataParser.parse(mediaElement, log);
+            
+            return mediaElement;
+        }
+        
+        // Add a parsed media element and its streams to the relevant lists
+        private void addMediaElement(ScanDirectory scanDirectory, MediaElement mediaElement) {
+            // If we don't support this media file move on...
+            if(mediaElement.getType() == MediaElementType.NONE) {
+                LogUtils.writeToLog(log, "No media streams found for file " + mediaElement.getPath(), Level.DEBUG, true);
+                return;
+            }
+
+            // Add streams to update lists
+            if(mediaElement.getVideoStreams() != null && !mediaElement.getVideoStreams().isEmpty()) {
+                videoStreams.addAll(mediaElement.getVideoStreams());
+            }
+
+            if(mediaElement.getAudioStreams() != null && !mediaElement.getAudioStreams().isEmpty()) {
+                audioStreams.addAll(mediaElement.getAudioStreams());
+            }
+
+            if(mediaElement.getSubtitleStreams() != null && !mediaElement.getSubtitleStreams().isEmpty()) {
+                subtitleStreams.addAll(mediaElement.getSubtitleStreams());
+            }
+
+            // Add media element to list
+            scanDirectory.elements.add(mediaElement);
+
+            // Update counters
+            if(mediaElement.getType() == MediaElementType.AUDIO) {
+                audio++;
+            } else if(mediaElement.getType() == MediaElementType.VIDEO) {
+                video++;
+            }
+        }
+        
+        // Retrieve unchanged child elements of a directory from the database
+        private void loadUnchangedElements(Path dir, ScanDirectory scanDirectory) {
+            List<MediaElement> children = mediaDao.getMediaElementsByParentPath(dir.toString(), null);
+            
+            if(children == null) {
+                return;
+            }
+            
+            Map<UUID, IndexEntry> entries = new HashMap<>();
+            
+            for(IndexEntry entry : scanDirectory.unchanged) {
+                entries.put(entry.getID(), entry);
+            }
+            
+            for(MediaElement child : children) {
+                IndexEntry entry = entries.remove(child.getID());
+                
+                if(entry != null) {
+                    child.setLastModified(entry.getLastModified());
+                    child.setInode(entry.getInode());
+                    scanDirectory.elements.add(child);
+                }
+            }
+            
+            // Any remaining entries are only marked as scanned
+            scanDirectory.unchanged.clear();
+            scanDirectory.unchanged.addAll(entries.values());
+        }
 
+        // Returns the key used to match NFO files to media files by name
+        private String getInfoKey(String name) {
+            return name.trim().toLowerCase(Locale.ROOT);
+        }
+        
+        // Select NFO data which applies to the whole directory from data not matched to a media element.
+        // Files named after the directory or a known directory level name are preferred, otherwise the first by name is used.
+        private NFOData getDirectoryInfo(Path dir, Map<String, NFOData> dirData) {
+            if(dirData.isEmpty()) {
+                return null;
+            }
+            
+            if(dir.getFileName() != null && dirData.containsKey(getInfoKey(dir.getFileName().toString()))) {
+                return dirData.get(getInfoKey(dir.getFileName().toString()));
+            }
+            
+            for(String name : DIRECTORY_INFO_FILE_NAMES) {
+                if(dirData.containsKey(name)) {
+                    return dirData.get(name);
+                }
+            }
+            
+            return dirData.values().iterator().next();
+        }
+        
         private boolean isInfoFile(Path path) {
             return FilenameUtils.isExtension(path.getFileName().toString().toLowerCase(), INFO_FILE_TYPES);
         }
 
+        // Determine if a file has changed since it was last scanned
+        private boolean isModified(IndexEntry entry, BasicFileAttributes attr) {
+            // Force rescan
+            if(folder.getLastScanned() == null) {
+                return true;
+            }
+            
+            if(entry.getSize() == null || entry.getSize() != attr.size()) {
+                return true;
+            }
+            
+            // Fall back to the folder timestamp for elements scanned before file attributes were recorded
+            if(entry.getLastModified() == null) {
+                return new Timestamp(attr.lastModifiedTime().toMillis()).after(folder.getLastScanned());
+            }
+            
+            if(entry.getLastModified().getTime() != attr.lastModifiedTime().toMillis()) {
+                return true;
+            }
+            
+            // Check inode if available
+            Long inode = getInode(attr);
+            
+            return entry.getInode() != null && inode != null && !entry.getInode().equals(inode);
+        }
+        
+        // Get inode from file attributes if supported by the file system
+        private Long getInode(BasicFileAttributes attr) {
+            if(attr.fileKey() == null) {
+                return null;
+            }
+            
+            Matcher matcher = INODE.matcher(attr.fileKey().toString());
+            
+            if(matcher.find()) {
+                return Long.parseLong(matcher.group(1));
+            }
+            
+            return null;
+        }
+
         private boolean isExcluded(Path path) {
             for (String name : EXCLUDED_FILE_NAMES) {
                 if (path.getFileName().toString().equalsIgnoreCase(name)) {
@@ -840,6 +1544,8 @@ public class ScannerService implements DisposableBean {
             
             // Set common attributes
             mediaElement.setCreated(new Timestamp(attr.creationTime().toMillis()));
+            mediaElement.setLastModified(new Timestamp(attr.lastModifiedTime().toMillis()));
+            mediaElement.setInode(getInode(attr));
             mediaElement.setPath(path.toString());
             mediaElement.setParentPath(path.getParent().toString());
             mediaElement.setLastScanned(scanTime);
@@ -1003,24 +1709,34 @@ public class ScannerService implements DisposableBean {
 
         // Depending on directory structure this could return artist, series or collection based on the parent directory name.
         private String getDirectoryRoot(Path path, String mediaFolderPath) {
-            File dir = path.toFile();
+            Path parent = path.getParent();
             
             // Check variables
-            if (!dir.isDirectory()) {
+            if (parent == null) {
                 return null;
             }
 
             // If the parent directory is the current media folder forget it
-            if (dir.getParent().equals(mediaFolderPath)) {
+            if (parent.toString().equals(mediaFolderPath)) {
                 return null;
             }
 
             // Check if the root directory contains media, if so forget it
-            if (MediaUtils.containsMedia(dir.getParentFile(), false)) {
+            if (containsMedia(path, parent)) {
                 return null;
             }
             
-            return dir.getParentFile().getName();
+            return parent.getFileName().toString();
+        }
+        
+        // Determine if the parent of a directory contains media files.
+        // Uses what has been found so far while scanning the parent and only lists it if nothing has been found yet.
+        private boolean containsMedia(Path path, Path parent) {
+            if(!path.equals(root) && directories.peekLast() != null && directories.peekLast().media) {
+                return true;
+            }
+            
+            return mediaDirectories.computeIfAbsent(parent, dir -> MediaUtils.containsMedia(dir.toFile(), false));
         }
         
         public long getTotal() {
@@ -1051,32 +1767,16 @@ public class ScannerService implements DisposableBean {
             return scanTime;
         }
         
-        public List<MediaElement> getNewMediaElements() {
-            return newElements;
-        }
-        
-        public List<MediaElement> getUpdatedMediaElements() {
-            return updatedElements;
-        }
-        
-        public List<Playlist> getNewPlaylists() {
-            return newPlaylists;
-        }
-        
-        public List<Playlist> getUpdatedPlaylists() {
-            return updatedPlaylists;
-        }
-        
-        private List<VideoStream> getVideoStreams() {
-            return videoStreams;
-        }
-        
-        private List<AudioStream> getAudioStreams() {
-            return audioStreams;
-        }
-        
-        private List<SubtitleStream> getSubtitleStreams() {
-            return subtitleStreams;
+        // State of a directory currently being scanned
+        private class ScanDirectory {
+            private boolean changed = false;
+            private boolean media = false;
+            private boolean content = false;
+            private IndexEntry entry = null;
+            private MediaElement element = null;
+            private final Deque<MediaElement> elements = new ArrayDeque<>();
+            private final List<IndexEntry> unchanged = new ArrayList<>();
+            private final List<Future<MediaElement>> pending = new ArrayList<>();
         }
     }
 }
\ No newline at end of file
@@ -29,9 +29,9 @@ import com.scooter1556.sms.server.domain.Job;
 import com.scooter1556.sms.server.domain.Session;
 import com.scooter1556.sms.server.domain.TranscodeProfile;
 import com.scooter1556.sms.server.domain.UserStats;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ConcurrentHashMap;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -46,10 +46,10 @@ public class SessionService implements DisposableBean {
     @Autowired
     private UserDao userDao;
 
-    private final ConcurrentSkipListSet<Session> sessions = new ConcurrentSkipListSet<>();
+    private final Map<UUID, Session> sessions = new ConcurrentHashMap<>();
 
     public Session[] getSessions() {
-        return sessions.toArray(new Session[sessions.size()]);
+        return sessions.values().toArray(new Session[0]);
     }
 
     public int getNumSessions() {
@@ -59,10 +59,7 @@ public class SessionService implements DisposableBean {
     public int getNumJobs() {
         int jobs = 0;
 
-        Iterator<Session> sIter = sessions.iterator();
-
-        while (sIter.hasNext()) {
-            Session session = sIter.next();
+        for(Session session : sessions.values()) {
             jobs += session.getNumJobs();
         }
 
@@ -78,16 +75,14 @@ public class SessionService implements DisposableBean {
         // Generate ID if required
         if(id == null) {
             id = UUID.randomUUID();
-        } else {
-            // Check session doesn't already exist
-            if(isSessionAvailable(id)) {
-                return id;
-            }
         }
 
-        // Create a new session and add it to the list
+        // Create a new session and add it to the list unless it already exists
         Session session = new Session(id, username, profile);
-        sessions.add(session);
+        
+        if(sessions.putIfAbsent(id, session) != null) {
+            return id;
+        }
 
         LogService.getInstance().addLogEntry(LogService.Level.INFO, CLASS_NAME, "New session created: " + session.toString(), null);
 
@@ -95,21 +90,20 @@ public class SessionService implements DisposableBean {
     }
 
     public void removeSessions(UUID id) {
-        Iterator<Session> sIter = sessions.iterator();
-
-        while (sIter.hasNext()) {
-            Session session = sIter.next();
-
-            // Check if we are looking for a specific session
-            if(id != null) {
-                if(session.getId().compareTo(id) != 0) {
-                    continue;
-                }
+        // Remove all sessions if a specific session is not requested
+        if(id == null) {
+            for(UUID sid : sessions.keySet()) {
+                removeSessions(sid);
             }
-
-            // Remove session
+            
+            return;
+        }
+        
+        // Remove session before ending its jobs so it can't be used in the meantime
+        Session session = sessions.remove(id);
+        
+        if(session != null) {
             endJobs(session, null);
-            sIter.remove();
         }
     }
 
@@ -123,6 +117,13 @@ public class SessionService implements DisposableBean {
                 }
             }
 
+            // Remove job from session, only one caller can end each job
+            if(session.removeJobById(job.getId()) == null) {
+                continue;
+            }
+            
+            job.setEnded(true);
+
             // Stop transcode process
             if(job.getTranscodeProfile().getType() > TranscodeProfile.StreamType.DIRECT) {
                 adaptiveStreamingService.endProcess(job.getId());
@@ -145,9 +146,6 @@ public class SessionService implements DisposableBean {
                 // Update database
                 userDao.updateUserStats(userStats);
             }
-
-            // Remove job from session
-            session.removeJobById(job.getId());
         }
     }
 
@@ -169,13 +167,7 @@ public class SessionService implements DisposableBean {
     }
 
     public Session getSessionById(UUID id) {
-        for(Session session : sessions) {
-            if(session.getId().compareTo(id) == 0) {
-                return session;
-            }
-        }
-
-        return null;
+        return id == null ? null : sessions.get(id);
     }
 
     public boolean isSessionAvailable(UUID id) {
@@ -30,6 +30,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Properties;
 import net.harawata.appdirs.AppDirs;
 import net.harawata.appdirs.AppDirsFactory;
@@ -50,11 +51,30 @@ public final class SettingsService {
     public static final String CONFIG_DEEP_SCAN_SCHEDULE = "deepscan.schedule";
     public static final String CONFIG_MEDIA_SCAN_SCHEDULE = "mediascan.schedule";
     public static final String CONFIG_PLAYLIST_SCAN_SCHEDULE = "playlistscan.schedule";
+    public static final String CONFIG_SCAN_THREADS = "scan.threads";
+    public static final String CONFIG_LIVE_INDEXING = "scan.live";
+    public static final String CONFIG_DEEP_SCAN_THREADS = "deepscan.threads";
+    public static final String CONFIG_DEEP_SCAN_MODE = "deepscan.mode";
+    public static final String CONFIG_SEGMENT_TIMEOUT = "stream.segmenttimeout";
+    public static final String CONFIG_SEGMENT_CACHE_SIZE = "stream.cachesize";
+    public static final String CONFIG_THROTTLE_WINDOW = "stream.throttlewindow";
+    public static final String CONFIG_POST_PROCESS_THREADS = "stream.postprocessthreads";
     
     // Default Values
     public static final String DEFAULT_DEEP_SCAN_SCHEDULE = "0 0 0 * * *";
     public static final String DEFAULT_MEDIA_SCAN_SCHEDULE = "0 0 22 * * *";
     public static final String DEFAULT_PLAYLIST_SCAN_SCHEDULE = "0 0 6 * * *";
+    public static final int DEFAULT_SCAN_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final boolean DEFAULT_LIVE_INDEXING = false;
+    public static final int DEFAULT_DEEP_SCAN_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final String DEFAULT_DEEP_SCAN_MODE = "packet";
+    public static final int DEFAULT_SEGMENT_TIMEOUT = 10;
+    public static final int DEFAULT_SEGMENT_CACHE_SIZE = 4096;
+    public static final int DEFAULT_THROTTLE_WINDOW = 120;
+    public static final int DEFAULT_POST_PROCESS_THREADS = Runtime.getRuntime().availableProcessors();
+    
+    // Deep scan modes
+    public static final String[] DEEP_SCAN_MODES = {"frame", "packet", "sampled"};
     
     Properties config;
     
@@ -64,6 +84,14 @@ public final class SettingsService {
     private String deepScanSchedule = DEFAULT_DEEP_SCAN_SCHEDULE;
     private String mediaScanSchedule = DEFAULT_MEDIA_SCAN_SCHEDULE;
     private String playlistScanSchedule = DEFAULT_PLAYLIST_SCAN_SCHEDULE;
+    private int scanThreads = DEFAULT_SCAN_THREADS;
+    private boolean liveIndexing = DEFAULT_LIVE_INDEXING;
+    private int deepScanThreads = DEFAULT_DEEP_SCAN_THREADS;
+    private String deepScanMode = DEFAULT_DEEP_SCAN_MODE;
+    private int segmentTimeout = DEFAULT_SEGMENT_TIMEOUT;
+    private int segmentCacheSize = DEFAULT_SEGMENT_CACHE_SIZE;
+    private int throttleWindow = DEFAULT_THROTTLE_WINDOW;
+    private int postProcessThreads = DEFAULT_POST_PROCESS_THREADS;
     
     private static final SettingsService INSTANCE = new SettingsService();
     
@@ -272,6 +300,116 @@ public final class SettingsService {
         } else {
             config.setProperty(CONFIG_PLAYLIST_SCAN_SCHEDULE, playlistScanSchedule);
         } 
+        
+        // Scan Threads
+        if(config.containsKey(CONFIG_SCAN_THREADS)) {
+            try {
+                int test = Integer.parseInt(config.getProperty(CONFIG_SCAN_THREADS));
+                
+                if(test > 0) {
+                    scanThreads = test;
+                }
+            } catch(NumberFormatException ex) {
+                LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Invalid value for " + CONFIG_SCAN_THREADS + " in configuration file.", null);
+            }
+        } else {
+            config.setProperty(CONFIG_SCAN_THREADS, String.valueOf(scanThreads));
+        }
+        
+        // Live Indexing
+        if(config.containsKey(CONFIG_LIVE_INDEXING)) {
+            liveIndexing = Boolean.parseBoolean(config.getProperty(CONFIG_LIVE_INDEXING));
+        } else {
+            config.setProperty(CONFIG_LIVE_INDEXING, String.valueOf(liveIndexing));
+        }
+        
+        // Deep Scan Threads
+        if(config.containsKey(CONFIG_DEEP_SCAN_THREADS)) {
+            try {
+                int test = Integer.parseInt(config.getProperty(CONFIG_DEEP_SCAN_THREADS));
+                
+                if(test > 0) {
+                    deepScanThreads = test;
+                }
+            } catch(NumberFormatException ex) {
+                LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Invalid value for " + CONFIG_DEEP_SCAN_THREADS + " in configuration file.", null);
+            }
+        } else {
+            config.setProperty(CONFIG_DEEP_SCAN_THREADS, String.valueOf(deepScanThreads));
+        }
+        
+        // Deep Scan Mode
+        if(config.containsKey(CONFIG_DEEP_SCAN_MODE)) {
+            String test = config.getProperty(CONFIG_DEEP_SCAN_MODE);
+            
+            if(isValidDeepScanMode(test)) {
+                deepScanMode = test;
+            } else {
+                LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Invalid value for " + CONFIG_DEEP_SCAN_MODE + " in configuration file.", null);
+            }
+        } else {
+            config.setProperty(CONFIG_DEEP_SCAN_MODE, deepScanMode);
+        }
+        
+        // Segment Timeout
+        if(config.containsKey(CONFIG_SEGMENT_TIMEOUT)) {
+            try {
+                int test = Integer.parseInt(config.getProperty(CONFIG_SEGMENT_TIMEOUT));
+                
+                if(test > 0) {
+                    segmentTimeout = test;
+                }
+            } catch(NumberFormatException ex) {
+                LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Invalid value for " + CONFIG_SEGMENT_TIMEOUT + " in configuration file.", null);
+            }
+        } else {
+            config.setProperty(CONFIG_SEGMENT_TIMEOUT, String.valueOf(segmentTimeout));
+        }
+        
+        // Segment Cache Size (MB)
+        if(config.containsKey(CONFIG_SEGMENT_CACHE_SIZE)) {
+            try {
+                int test = Integer.parseInt(config.getProperty(CONFIG_SEGMENT_CACHE_SIZE));
+                
+                if(test >= 0) {
+                    segmentCacheSize = test;
+                }
+            } catch(NumberFormatException ex) {
+                LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Invalid value for " + CONFIG_SEGMENT_CACHE_SIZE + " in configuration file.", null);
+            }
+        } else {
+            config.setProperty(CONFIG_SEGMENT_CACHE_SIZE, String.valueOf(segmentCacheSize));
+        }
+        
+        // Throttle Window (seconds)
+        if(config.containsKey(CONFIG_THROTTLE_WINDOW)) {
+            try {
+                int test = Integer.parseInt(config.getProperty(CONFIG_THROTTLE_WINDOW));
+                
+                if(test >= 0) {
+                    throttleWindow = test;
+                }
+            } catch(NumberFormatException ex) {
+                LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Invalid value for " + CONFIG_THROTTLE_WINDOW + " in configuration file.", null);
+            }
+        } else {
+            config.setProperty(CONFIG_THROTTLE_WINDOW, String.valueOf(throttleWindow));
+        }
+        
+        // Post-Process Threads
+        if(config.containsKey(CONFIG_POST_PROCESS_THREADS)) {
+            try {
+                int test = Integer.parseInt(config.getProperty(CONFIG_POST_PROCESS_THREADS));
+                
+                if(test > 0) {
+                    postProcessThreads = test;
+                }
+            } catch(NumberFormatException ex) {
+                LogService.getInstance().addLogEntry(LogService.Level.WARN, CLASS_NAME, "Invalid value for " + CONFIG_POST_PROCESS_THREADS + " in configuration file.", null);
+            }
+        } else {
+            config.setProperty(CONFIG_POST_PROCESS_THREADS, String.valueOf(postProcessThreads));
+        }
     }
     
     private void saveConfig() {
@@ -406,4 +544,171 @@ public final class SettingsService {
         
         saveConfig();
     }
+    
+    public int getScanThreads() {
+        if(scanThreads > 0) {
+            return scanThreads;
+        }
+        
+        return DEFAULT_SCAN_THREADS;
+    }
+    
+    public void setScanThreads(int value) {
+        if(config == null || value < 1) {
+            return;
+        }
+        
+        scanThreads = value;
+        config.setProperty(CONFIG_SCAN_THREADS, String.valueOf(value));
+        
+        saveConfig();
+    }
+    
+    public boolean getLiveIndexing() {
+        return liveIndexing;
+    }
+    
+    public void setLiveIndexing(boolean value) {
+        if(config == null) {
+            return;
+        }
+        
+        liveIndexing = value;
+        config.setProperty(CONFIG_LIVE_INDEXING, String.valueOf(value));
+        
+        saveConfig();
+    }
+    
+    public int getDeepScanThreads() {
+        if(deepScanThreads > 0) {
+            return deepScanThreads;
+        }
+        
+        return DEFAULT_DEEP_SCAN_THREADS;
+    }
+    
+    public void setDeepScanThreads(int value) {
+        if(config == null || value < 1) {
+            return;
+        }
+        
+        deepScanThreads = value;
+        config.setProperty(CONFIG_DEEP_SCAN_THREADS, String.valueOf(value));
+        
+        saveConfig();
+    }
+    
+    public String getDeepScanMode() {
+        if(isValidDeepScanMode(deepScanMode)) {
+            return deepScanMode;
+        }
+        
+        return DEFAULT_DEEP_SCAN_MODE;
+    }
+    
+    public void setDeepScanMode(String value) {
+        if(config == null || !isValidDeepScanMode(value)) {
+            return;
+        }
+        
+        deepScanMode = value;
+        config.setProperty(CONFIG_DEEP_SCAN_MODE, value);
+        
+        saveConfig();
+    }
+    
+    public int getSegmentTimeout() {
+        if(segmentTimeout > 0) {
+            return segmentTimeout;
+        }
+        
+        return DEFAULT_SEGMENT_TIMEOUT;
+    }
+    
+    public void setSegmentTimeout(int value) {
+        if(config == null || value < 1) {
+            return;
+        }
+        
+        segmentTimeout = value;
+        config.setProperty(CONFIG_SEGMENT_TIMEOUT, String.valueOf(value));
+        
+        saveConfig();
+    }
+    
+    /**
+    * Returns the maximum size of the segment cache in megabytes.
+    *
+    * @return Size of the segment cache, 0 if caching is disabled.
+    */
+    public int getSegmentCacheSize() {
+        if(segmentCacheSize >= 0) {
+            return segmentCacheSize;
+        }
+        
+        return DEFAULT_SEGMENT_CACHE_SIZE;
+    }
+    
+    public void setSegmentCacheSize(int value) {
+        if(config == null || value < 0) {
+            return;
+        }
+        
+        segmentCacheSize = value;
+        config.setProperty(CONFIG_SEGMENT_CACHE_SIZE, String.valueOf(value));
+        
+        saveConfig();
+    }
+    
+    /**
+    * Returns how far ahead of the furthest client a transcode may run before it is paused.
+    *
+    * @return Throttle window in seconds, 0 if throttling is disabled.
+    */
+    public int getThrottleWindow() {
+        if(throttleWindow >= 0) {
+            return throttleWindow;
+        }
+        
+        return DEFAULT_THROTTLE_WINDOW;
+    }
+    
+    public void setThrottleWindow(int value) {
+        if(config == null || value < 0) {
+            return;
+        }
+        
+        throttleWindow = value;
+        config.setProperty(CONFIG_THROTTLE_WINDOW, String.valueOf(value));
+        
+        saveConfig();
+    }
+    
+    /**
+    * Returns the number of segments which may be post-processed at once across all streams.
+    *
+    * @return Number of post-processing threads.
+    */
+    public int getPostProcessThreads() {
+        if(postProcessThreads > 0) {
+            return postProcessThreads;
+        }
+        
+        return DEFAULT_POST_PROCESS_THREADS;
+    }
+    
+    public void setPostProcessThreads(int value) {
+        if(config == null || value < 1) {
+            return;
+        }
+        
+        postProcessThreads = value;
+        config.setProperty(CONFIG_POST_PROCESS_THREADS, String.valueOf(value));
+        
+        saveConfig();
+    }
+    
+    private boolean isValidDeepScanMode(String value) {
+        return value != null && Arrays.asList(DEEP_SCAN_MODES).contains(value);
+    }
 }
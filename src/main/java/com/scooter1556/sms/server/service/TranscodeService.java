@@ -24,10 +24,12 @@
 package com.scooter1556.sms.server.service;
 
 import com.scooter1556.sms.server.SMS;
+import com.scooter1556.sms.server.dao.MediaDao;
 import com.scooter1556.sms.server.domain.AudioTranscode;
 import com.scooter1556.sms.server.domain.ClientProfile;
 import com.scooter1556.sms.server.domain.HardwareAccelerator;
 import com.scooter1556.sms.server.domain.Job;
+import com.scooter1556.sms.server.domain.KeyFrameIndex;
 import com.scooter1556.sms.server.domain.MediaElement;
 import com.scooter1556.sms.server.domain.MediaElement.AudioStream;
 import com.scooter1556.sms.server.domain.MediaElement.MediaElementType;
@@ -46,8 +48,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
 import org.apache.commons.lang3.ArrayUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -57,6 +61,9 @@ public class TranscodeService {
     
     private Transcoder transcoder = null;
     
+    @Autowired
+    private MediaDao mediaDao;
+    
     // Setup transcoder
     public TranscodeService() {
         // Attempt to find a transcoder
@@ -78,7 +85,10 @@ public class TranscodeService {
         return this.transcoder;
     }
     
-    public String[][] getTranscodeCommand(Job job) {
+    //
+    // Segments are written to the stream directory of the process with the given ID.
+    //
+    public String[][] getTranscodeCommand(Job job, UUID processId) {
         ArrayList<TranscodeCommand> commands = new ArrayList<>();
         
         // Get transcode profile
@@ -90,6 +100,25 @@ public class TranscodeService {
         // Hardware accelerators
         List<HardwareAccelerator> accelerators = null;
         
+        // Key frames of the source video stream
+        KeyFrameIndex keyFrames = null;
+        int keyFrame = -1;
+        
+        if(profile.getVideoStream() != null) {
+            keyFrames = mediaDao.getKeyFrameIndex(job.getMediaElement().getID(), profile.getVideoStream());
+            
+            if(keyFrames != null) {
+                keyFrame = keyFrames.floor(profile.getOffset());
+            } else {
+                // Build the index at the next deep scan so later seeks in this stream can use it
+                mediaDao.queueKeyFrameIndex(job.getMediaElement().getID(), profile.getVideoStream());
+            }
+        }
+        
+        // Stream copies can only start and split on key frames
+        boolean copy = false;
+        double start = profile.getOffset();
+        
         if(profile.getVideoTranscodes() != null) {
             // Some encoders don't support bitrate limiting so check if this is a requirement
             boolean bitrateLimit = false;
@@ -107,6 +136,12 @@ public class TranscodeService {
             if(accelerators != null) {
                 transcodeCommands += accelerators.size();
             }
+            
+            copy = TranscodeUtils.isVideoCopy(profile);
+            
+            if(copy && keyFrame >= 0) {
+                start = keyFrames.getTimestamp(keyFrame);
+            }
         }
 
         for(int i = 0; i < transcodeCommands; i++) {
@@ -119,8 +154,16 @@ public class TranscodeService {
             commands.get(i).getCommands().add("-y");
 
             // Seek
-            commands.get(i).getCommands().add("-ss");
-            commands.get(i).getCommands().add(profile.getOffset().toString());
+            if(profile.getOffset() > 0 && keyFrame >= 0 && keyFrames.getPosition(keyFrame) > 0 && job.getMediaElement().getFormat() != null && job.getMediaElement().getFormat() == SMS.Format.MPEGTS) {
+                // Jump straight to the key frame rather than searching the transport stream for it
+                commands.get(i).getCommands().add("-skip_initial_bytes");
+                commands.get(i).getCommands().add(String.valueOf(keyFrames.getPosition(keyFrame)));
+                commands.get(i).getCommands().add("-ss");
+                commands.get(i).getCommands().add(String.format(Locale.ROOT, "%.3f", profile.getOffset() - keyFrames.getTimestamp(keyFrame)));
+            } else {
+                commands.get(i).getCommands().add("-ss");
+                commands.get(i).getCommands().add(String.format(Locale.ROOT, "%.3f", start));
+            }
 
             // Video
             if(profile.getVideoTranscodes() != null) {
@@ -187,7 +230,7 @@ public class TranscodeService {
                         commands.get(i).getCommands().addAll(getVideoEncodingCommands(hardwareAccelerator, vTranscode.getCodec(), vTranscode.getQuality(), vTranscode.getMaxBitrate(), v));
 
                         commands.get(i).getCommands().add("-force_key_frames");
-                        commands.get(i).getCommands().add("expr:gte(t,n_forced*" + profile.getSegmentDuration()  + ")");
+                        commands.get(i).getCommands().add(getKeyFrameExpression(profile));
                     }
                 }
                 
@@ -219,7 +262,7 @@ public class TranscodeService {
             }
             
             // Segmenter
-            commands.get(i).getCommands().addAll(getSegmentCommands(job.getId(), profile.getOffset(), profile.getSegmentDuration()));
+            commands.get(i).getCommands().addAll(getSegmentCommands(processId, profile, start, job.getMediaElement().getDuration(), copy ? keyFrames : null));
         }
         
         // Prepare result
@@ -232,8 +275,11 @@ public class TranscodeService {
         return result;
     }
     
-    private Collection<String> getSegmentCommands(UUID id, Integer offset, Integer duration) {
-        if(id == null || duration == null) {
+    //
+    // Segments are split on the key frames closest to each segment boundary when a key frame index is provided.
+    //
+    private Collection<String> getSegmentCommands(UUID id, TranscodeProfile profile, double start, Double length, KeyFrameIndex keyFrames) {
+        if(id == null || profile.getSegmentDuration() == null) {
             return null;
         }
         
@@ -241,19 +287,25 @@ public class TranscodeService {
         
         
         // Calculate number of first segment
-        int startNum = 0;
-        
-        if(offset != null && offset > 0) {
-            startNum += (offset / duration);
-        } else {
-            offset = 0;
-        }
+        int startNum = profile.getSegmentNum(profile.getOffset());
         
         commands.add("-f");
         commands.add("segment");
+        
+        // Segments of differing lengths ahead of us need explicit split points
+        String times = null;
+        
+        if(keyFrames != null || startNum < profile.getInitialSegmentCount()) {
+            times = getSegmentTimes(profile, keyFrames, startNum, start, length);
+        }
 
-        commands.add("-segment_time");
-        commands.add(duration.toString());
+        if(times == null) {
+            commands.add("-segment_time");
+            commands.add(profile.getSegmentDuration().toString());
+        } else {
+            commands.add("-segment_times");
+            commands.add(times);
+        }
         
         commands.add("-segment_time_delta");
         commands.add("0.0625");
@@ -269,7 +321,7 @@ public class TranscodeService {
         commands.add(String.valueOf(startNum));
             
         commands.add("-initial_offset");
-        commands.add(String.valueOf(offset));
+        commands.add(String.format(Locale.ROOT, "%.3f", start));
 
         commands.add("-segment_list_size");
         commands.add("0");
@@ -285,6 +337,88 @@ public class TranscodeService {
         return commands;
     }
     
+    //
+    // Returns split points relative to the start time, one per segment so numbering is not affected by long GOPs.
+    // Without key frames split points are the segment boundaries themselves.
+    //
+    private String getSegmentTimes(TranscodeProfile profile, KeyFrameIndex keyFrames, int startNum, double start, Double length) {
+        StringBuilder times = new StringBuilder();
+        int previous = keyFrames == null ? -1 : keyFrames.floor(start);
+        
+        for(int n = startNum + 1; ; n++) {
+            double time;
+            
+            if(keyFrames == null) {
+                time = profile.getSegmentStart(n);
+                
+                if(length == null || time >= length) {
+                    break;
+                }
+            } else {
+                int index = keyFrames.nearest(profile.getSegmentStart(n));
+
+                if(index <= previous) {
+                    index = previous + 1;
+                }
+
+                if(index >= keyFrames.size()) {
+                    break;
+                }
+                
+                time = keyFrames.getTimestamp(index);
+                previous = index;
+            }
+            
+            if(times.length() > 0) {
+                times.append(',');
+            }
+            
+            times.append(String.format(Locale.ROOT, "%.3f", time - start));
+        }
+        
+        return times.length() > 0 ? times.toString() : null;
+    }
+    
+    //
+    // Returns whether the key frame nearest each segment boundary is different from the one before.
+    // Otherwise a long gap between key frames pushes every later split point a segment further on.
+    //
+    private boolean hasKeyFramePerSegment(KeyFrameIndex keyFrames, int duration) {
+        if(keyFrames.size() == 0 || duration <= 0) {
+            return true;
+        }
+        
+        int previous = keyFrames.nearest(0);
+        double end = keyFrames.getTimestamp(keyFrames.size() - 1);
+        
+        for(int n = 1; n * duration < end; n++) {
+            int index = keyFrames.nearest(n * duration);
+            
+            if(index <= previous) {
+                return false;
+            }
+            
+            previous = index;
+        }
+        
+        return true;
+    }
+    
+    //
+    // Returns an expression forcing a key frame at the start of each segment, relative to the start of the transcode.
+    //
+    private String getKeyFrameExpression(TranscodeProfile profile) {
+        int startNum = profile.getSegmentNum(profile.getOffset());
+        int initial = profile.getInitialSegmentCount() - startNum;
+        
+        if(initial <= 0) {
+            return "expr:gte(t,n_forced*" + profile.getSegmentDuration()  + ")";
+        }
+        
+        // Short initial segments followed by the normal duration
+        return "expr:gte(t,if(lt(n_forced," + initial + "),n_forced*" + profile.getInitialSegmentDuration() + "," + (initial * profile.getInitialSegmentDuration()) + "+(n_forced-" + initial + ")*" + profile.getSegmentDuration() + "))";
+    }
+    
     private Collection<String> getHardwareAccelerationCommands(HardwareAccelerator hardwareAccelerator, int codec, boolean tonemapping) {
         Collection<String> commands = new LinkedList<>();
 
@@ -922,6 +1056,15 @@ public class TranscodeService {
             }
         }
         
+        // Stream copies split on existing key frames so each segment needs one of its own
+        if(transcodeReason == SMS.TranscodeReason.NONE) {
+            KeyFrameIndex keyFrames = mediaDao.getKeyFrameIndex(mediaElement.getID(), transcodeProfile.getVideoStream());
+            
+            if(keyFrames != null && !hasKeyFramePerSegment(keyFrames, TranscodeUtils.getSegmentDuration(stream))) {
+                transcodeReason = SMS.TranscodeReason.KEY_FRAME_INTERVAL;
+            }
+        }
+        
         if(transcodeReason > SMS.TranscodeReason.NONE) {
             if(transcodeProfile.getType() == TranscodeProfile.StreamType.REMOTE || !clientProfile.getDirectPlay()) {
                 transcodeProfile.setMaxResolution(TranscodeUtils.getVideoResolution(stream.getResolution(), maxQuality));
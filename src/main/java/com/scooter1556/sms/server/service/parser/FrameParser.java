@@ -28,12 +28,23 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.io.JsonEOFException;
 import com.scooter1556.sms.server.dao.MediaDao;
+import com.scooter1556.sms.server.domain.KeyFrameIndex;
 import com.scooter1556.sms.server.domain.MediaElement;
 import com.scooter1556.sms.server.domain.MediaElement.VideoStream;
 import com.scooter1556.sms.server.service.LogService;
+import com.scooter1556.sms.server.service.SettingsService;
 import com.scooter1556.sms.server.utilities.ParserUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.lang.NonNull;
 import org.springframework.stereotype.Service;
@@ -43,13 +54,37 @@ public class FrameParser {
     
     private static final String CLASS_NAME = "FrameParser";
     
+    // Parsing modes
+    public static final String MODE_FRAME = "frame";
+    public static final String MODE_PACKET = "packet";
+    public static final String MODE_SAMPLED = "sampled";
+    
+    // Number and duration (seconds) of windows analysed in sampled mode
+    private static final int SAMPLE_COUNT = 10;
+    private static final int SAMPLE_DURATION = 30;
+    
+    // A jump in timestamps larger than this (seconds) marks the start of a new sample window
+    private static final int SAMPLE_GAP = SAMPLE_DURATION / 2;
+    
+    // Packet fields
+    private static final int FIELD_OTHER = 0;
+    private static final int FIELD_DURATION = 1;
+    private static final int FIELD_SIZE = 2;
+    private static final int FIELD_FLAGS = 3;
+    private static final int FIELD_PTS = 4;
+    private static final int FIELD_POS = 5;
+    
     @Autowired
     private MediaDao mediaDao;
     
-    // Process for parsing streams
-    Process process;
-    JsonParser jsonParser;
-        
+    // Active parser processes, tracked so they can be stopped
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+    
+    //
+    // Parses the frames of a video stream.
+    // Holds no state between calls so can be used by multiple threads at once.
+    // Returns null if the stream could not be parsed and should be retried later.
+    //
     public VideoStream parse(@NonNull VideoStream stream) {
         LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "parse() -> " + stream.getMediaElementId() + "(" + stream.getStreamId() + ")", null);
         
@@ -59,7 +94,7 @@ public class FrameParser {
         // Check transcoder exists
         if(parser == null) {
             LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Parser is not available but is required to parse frames.", null);
-            return stream;
+            return null;
         }
         
         // Check stream parameters
@@ -74,130 +109,492 @@ public class FrameParser {
         // Check media element exists
         if(element == null) {
             LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "The media element associated with the stream to parse cannot be found!", null);
-            return stream;
+            return null;
         }
+        
+        String mode = SettingsService.getInstance().getDeepScanMode();
+        String intervals = null;
+        
+        // Streams which only lack a key frame index are read in full as sampling cannot build one
+        boolean indexOnly = stream.getMaxBitrate() != null && stream.getMaxBitrate() > 0 && stream.getGOPSize() != null && stream.getGOPSize() > 0;
+        
+        try {
+            // Key frame timestamps are stored relative to the start of the container to match seek positions
+            StreamStatistics statistics = new StreamStatistics(getStartTime(parser, element));
+            
+            if(mode.equals(MODE_FRAME)) {
+                if(!parseFrames(parser, element, stream, statistics)) {
+                    return null;
+                }
+            } else {
+                if(mode.equals(MODE_SAMPLED) && !indexOnly) {
+                    intervals = getSampleIntervals(element);
+                }
+                
+                // Parse all packets or those from evenly spaced windows
+                if(!parsePackets(parser, element, stream, intervals, statistics)) {
+                    return null;
+                }
+            }
+            
+            // Process result
+            statistics.apply(stream);
+            
+            // Key frame index is only complete if the whole stream has been read
+            if(intervals == null && !statistics.keyFrames.isEmpty()) {
+                mediaDao.setKeyFrameIndex(stream, statistics.keyFrames.build());
+            }
+            
+        } catch(JsonEOFException ex) {
+            // Output was cut short so the stream will be parsed again
+            LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "parse() -> " + ex.getClass().getName(), null);
+            return null;
+        } catch(RuntimeException | IOException ex) {
+            LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Unable to parse frames for file " + element.getPath(), ex);
+        }
+        
+        return stream;
+    }
+    
+    //
+    // Decodes every frame of the stream, this is slow but also detects interlaced content.
+    // Returns false if the parser did not complete, for example when it has been stopped.
+    //
+    private boolean parseFrames(Path parser, MediaElement element, VideoStream stream, StreamStatistics statistics) throws IOException {
+        Process process = null;
+        JsonParser jsonParser = null;
 
         try {
-            String[] command = new String[]{parser.toString(), "-threads", "0", "-v", "quiet", "-print_format", "json", "-select_streams", "v:" + stream.getStreamId(), "-show_entries", "frame=interlaced_frame,key_frame,pkt_size,pkt_duration_time", element.getPath()};
+            String[] command = new String[]{parser.toString(), "-threads", "0", "-v", "quiet", "-print_format", "json", "-select_streams", "v:" + stream.getStreamId(), "-show_entries", "frame=interlaced_frame,key_frame,best_effort_timestamp_time,pkt_pos,pkt_size,pkt_duration_time", element.getPath()};
             
             // Start process
             ProcessBuilder processBuilder = new ProcessBuilder(command).redirectErrorStream(true);
-            this.process = processBuilder.start();
+            process = processBuilder.start();
+            processes.add(process);
             
             // Start Json Parser
             JsonFactory factory = new JsonFactory();
-            this.jsonParser  = factory.createParser(this.process.getInputStream());
-            
-            JsonToken jsonToken = this.jsonParser.nextToken();
+            jsonParser = factory.createParser(process.getInputStream());
             
-            // Stream Variables    
-            boolean interlaced = false;
-            long totalBitrate = 0L, totalGop = 0L;
-            int maxBitrate = 0, frameCount = 0, intervalCount = 0, intervalTotal= 0, intervalGop = 0, gopCount = 0;
-            double intervalDuration = 0;
+            JsonToken jsonToken = jsonParser.nextToken();
             
             // Frame Variables
             boolean keyFrame = false;
             int size = 0;
             double duration = 0;
+            double timestamp = -1;
+            long position = -1;
+            
+            statistics.setInterlaced(false);
             
-            while(!this.jsonParser.isClosed()){
+            while(!jsonParser.isClosed()){
                 if(jsonToken == null) {
                     break;
                 }
                 
                 if(jsonToken.equals(JsonToken.FIELD_NAME)) {
-                    String fieldName = this.jsonParser.getCurrentName();
+                    String fieldName = jsonParser.getCurrentName();
 
                     // Get next token which should be the field value
-                    this.jsonParser.nextToken();
+                    jsonParser.nextToken();
                     
                     // Process fields
                     switch(fieldName) {
                         case "key_frame":
-                            keyFrame = this.jsonParser.getValueAsBoolean(false);
-                            
-                            // GOP Size
-                            if(keyFrame) {                                
-                                if(intervalGop > 0) {                            
-                                    intervalGop++;
-
-                                    // Add to gop total and gop count
-                                    totalGop += intervalGop;
-                                    gopCount++;
-                                }
-                                
-                                // Reset interval
-                                intervalGop = 0;
-                            } else {
-                                // Increment interval on non-key frames
-                                intervalGop++;
-                            }
-                                
+                            keyFrame = jsonParser.getValueAsBoolean(false);
+                            statistics.updateGop(keyFrame);
                             break;
                             
                         case "interlaced_frame":
-                            boolean interlacedFrame = this.jsonParser.getValueAsBoolean(false);
-                            
-                            if(interlacedFrame) {
-                                interlaced = true;
+                            if(jsonParser.getValueAsBoolean(false)) {
+                                statistics.setInterlaced(true);
                             }
                             
                             break;
                             
                         case "pkt_size":
-                            size = this.jsonParser.getValueAsInt(0);
+                            size = jsonParser.getValueAsInt(0);
                             break;
                             
                         case "pkt_duration_time":
-                            duration = this.jsonParser.getValueAsDouble(0);
+                            duration = jsonParser.getValueAsDouble(0);
+                            break;
+                            
+                        case "best_effort_timestamp_time":
+                            timestamp = jsonParser.getValueAsDouble(-1);
                             break;
+                            
+                        case "pkt_pos":
+                            position = jsonParser.getValueAsLong(-1);
+                            break;
+                    }
+                    
+                } else if(jsonToken.equals(JsonToken.END_OBJECT)) {
+                    // End of frame
+                    if(keyFrame && timestamp >= 0) {
+                        statistics.keyFrames.add(timestamp, position);
                     }
                     
+                    keyFrame = false;
+                    timestamp = -1;
+                    position = -1;
                 }
                 
                 // Check if we have complete frame data
                 if(size > 0 && duration > 0) {
-                    int bitrate = Double.valueOf(size * 0.001 * stream.getBPS() * stream.getFPS()).intValue();
-
-                    // Add to bitrate total
-                    if(bitrate > 0) {
-                        // Check max bitrate
-                        // We accumulate at least 1 seconds worth of frames and compare the average bitrate
-                        // ensuring we are at a GOP boundary before processing
-                        if(intervalDuration > 1.0 && keyFrame) {                            
-                            int test = intervalTotal / intervalCount;
-
-                            if(test > maxBitrate) {
-                                maxBitrate = test;
-                            }
-                                
-                            // Reset variables
-                            intervalCount = 0;
-                            intervalDuration = 0;
-                            intervalTotal = 0;
-                        }
-
-                        totalBitrate += bitrate;
-                        intervalTotal += bitrate;
-                        intervalDuration += duration;
-                        frameCount++;
-                        intervalCount++;
-                    }
+                    statistics.updateBitrate(stream, size, duration, keyFrame);
                     
                     // Reset frame variables
                     size = 0;
                     duration = 0;
                 }
                 
-                jsonToken = this.jsonParser.nextToken();
+                jsonToken = jsonParser.nextToken();
             }
             
             // Close streams
-            this.process.getInputStream().close();
-            this.jsonParser.close();
+            process.getInputStream().close();
+            jsonParser.close();
+            
+            return process.waitFor() == 0;
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            stop(process, jsonParser);
+        }
+    }
+    
+    //
+    // Reads packet headers only, optionally limited to a list of intervals of the file.
+    // Returns false if the parser did not complete, for example when it has been stopped.
+    //
+    private boolean parsePackets(Path parser, MediaElement element, VideoStream stream, String intervals, StreamStatistics statistics) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(parser.toString(), "-v", "quiet", "-print_format", "compact=p=0", "-select_streams", "v:" + stream.getStreamId(), "-show_entries", "packet=pts_time,duration_time,size,pos,flags"));
+        
+        if(intervals != null) {
+            command.add("-read_intervals");
+            command.add(intervals);
+        }
+        
+        command.add(element.getPath());
+        
+        Process process = null;
+        
+        try {
+            // Start process
+            ProcessBuilder processBuilder = new ProcessBuilder(command).redirectErrorStream(true);
+            process = processBuilder.start();
+            processes.add(process);
+            
+            try (InputStream input = new BufferedInputStream(process.getInputStream(), 65536)) {
+                readPackets(input, stream, statistics, intervals != null);
+            }
+            
+            return process.waitFor() == 0;
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            stop(process, null);
+        }
+    }
+    
+    //
+    // Reads packet lines of the form 'pts_time=0.041708|duration_time=0.041708|size=1234|pos=5678|flags=K_' without creating any objects.
+    // When reading sample windows a jump in timestamps ends the current window.
+    //
+    private void readPackets(InputStream input, VideoStream stream, StreamStatistics statistics, boolean windowed) throws IOException {
+        // Used when the container does not provide packet durations
+        double frameDuration = stream.getFPS() > 0 ? 1 / stream.getFPS() : 0;
+        
+        // Field Variables
+        int c, field = FIELD_OTHER, position = 0;
+        boolean value = false, decimal = false, valid = true;
+        long number = 0, scale = 1;
+        
+        // Packet Variables
+        boolean packet = false, keyFrame = false;
+        int size = 0;
+        double duration = 0, timestamp = -1, previous = -1;
+        long pos = -1;
+        
+        while((c = input.read()) != -1) {
+            if(c == '|' || c == '\n') {
+                // End of field
+                if(value && valid) {
+                    if(field == FIELD_SIZE) {
+                        size = (int) number;
+                    } else if(field == FIELD_DURATION) {
+                        duration = (double) number / scale;
+                    } else if(field == FIELD_PTS) {
+                        timestamp = (double) number / scale;
+                    } else if(field == FIELD_POS) {
+                        pos = number;
+                    }
+                }
                 
-            // Process result
+                // End of packet
+                if(c == '\n' && packet) {
+                    if(duration <= 0) {
+                        duration = frameDuration;
+                    }
+                    
+                    if(windowed && timestamp >= 0) {
+                        if(previous >= 0 && Math.abs(timestamp - previous) > SAMPLE_GAP) {
+                            statistics.endWindow();
+                        }
+                        
+                        previous = timestamp;
+                    }
+                    
+                    statistics.updateGop(keyFrame);
+                    
+                    if(size > 0 && duration > 0) {
+                        statistics.updateBitrate(stream, size, duration, keyFrame);
+                    }
+                    
+                    if(keyFrame && timestamp >= 0) {
+                        statistics.keyFrames.add(timestamp, pos);
+                    }
+                    
+                    // Reset packet variables
+                    packet = false;
+                    keyFrame = false;
+                    size = 0;
+                    duration = 0;
+                    timestamp = -1;
+                    pos = -1;
+                }
+                
+                // Reset field variables
+                field = FIELD_OTHER;
+                position = 0;
+                value = false;
+                decimal = false;
+                valid = true;
+                number = 0;
+                scale = 1;
+                
+                continue;
+            }
+            
+            if(c == '\r') {
+                continue;
+            }
+            
+            // Field name
+            if(!value) {
+                if(c == '=') {
+                    value = true;
+                    packet = true;
+                } else if(position == 1 && field == FIELD_PTS && c == 'o') {
+                    position++;
+                    field = FIELD_POS;
+                } else if(position++ == 0) {
+                    switch(c) {
+                        case 'p':
+                            field = FIELD_PTS;
+                            break;
+                            
+                        case 'd':
+                            field = FIELD_DURATION;
+                            break;
+                            
+                        case 's':
+                            field = FIELD_SIZE;
+                            break;
+                            
+                        case 'f':
+                            field = FIELD_FLAGS;
+                            break;
+                    }
+                }
+                
+                continue;
+            }
+            
+            // Field value
+            if(field == FIELD_FLAGS) {
+                if(c == 'K') {
+                    keyFrame = true;
+                }
+            } else if(c >= '0' && c <= '9') {
+                number = number * 10 + (c - '0');
+                
+                if(decimal) {
+                    scale *= 10;
+                }
+            } else if(c == '.') {
+                decimal = true;
+            } else {
+                // Values such as 'N/A' or negative timestamps
+                valid = false;
+            }
+        }
+    }
+    
+    //
+    // Returns the start time of the container in seconds, or zero if it is not known.
+    //
+    private double getStartTime(Path parser, MediaElement element) throws IOException {
+        String[] command = new String[]{parser.toString(), "-v", "quiet", "-show_entries", "format=start_time", "-of", "default=nw=1:nk=1", element.getPath()};
+        Process process = null;
+        
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder(command).redirectErrorStream(true);
+            process = processBuilder.start();
+            processes.add(process);
+            
+            String line;
+            
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                line = reader.readLine();
+            }
+            
+            if(process.waitFor() != 0 || line == null) {
+                return 0;
+            }
+            
+            return Double.parseDouble(line.trim());
+        } catch(NumberFormatException ex) {
+            // Value is 'N/A'
+            return 0;
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            stop(process, null);
+        }
+    }
+    
+    //
+    // Returns read intervals for evenly spaced windows of the file, or null if it is too short to sample.
+    // Intervals are comma separated so a single parser process reads every window.
+    //
+    private String getSampleIntervals(MediaElement element) {
+        Double duration = element.getDuration();
+        
+        if(duration == null || duration < SAMPLE_COUNT * SAMPLE_DURATION * 2) {
+            return null;
+        }
+        
+        StringBuilder intervals = new StringBuilder();
+        double spacing = duration / SAMPLE_COUNT;
+        
+        for(int i = 0; i < SAMPLE_COUNT; i++) {
+            long start = Math.round((spacing * i) + ((spacing - SAMPLE_DURATION) / 2));
+            
+            if(intervals.length() > 0) {
+                intervals.append(',');
+            }
+            
+            intervals.append(start).append("%+").append(SAMPLE_DURATION);
+        }
+        
+        return intervals.toString();
+    }
+    
+    // Stop all active parser processes
+    public void stop() {
+        LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "stop()", null);
+        
+        for(Process process : processes) {
+            process.destroy();
+        }
+    }
+        
+    // Stop Json parser and process if running
+    private void stop(Process process, JsonParser jsonParser) {
+        try {
+            if (jsonParser != null && !jsonParser.isClosed()) {
+                jsonParser.close();
+            }
+        } catch (IOException ex) {
+            LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Failed to stop frame parser.", ex);
+        } finally {
+            if(process != null) {
+                process.destroy();
+                processes.remove(process);
+            }
+        }
+    }
+    
+    //
+    // Accumulates bitrate, GOP and key frame statistics for a stream as frames or packets are read.
+    //
+    private static class StreamStatistics {
+        private final KeyFrameIndex.Builder keyFrames;
+        private Boolean interlaced = null;
+        private long totalBitrate = 0L, totalGop = 0L;
+        private int maxBitrate = 0, frameCount = 0, intervalCount = 0, intervalTotal = 0, intervalGop = 0, gopCount = 0;
+        private double intervalDuration = 0;
+        
+        private StreamStatistics(double origin) {
+            this.keyFrames = new KeyFrameIndex.Builder(origin);
+        }
+        
+        private void setInterlaced(boolean interlaced) {
+            this.interlaced = interlaced;
+        }
+        
+        // GOP Size
+        private void updateGop(boolean keyFrame) {
+            if(keyFrame) {                                
+                if(intervalGop > 0) {                            
+                    intervalGop++;
+
+                    // Add to gop total and gop count
+                    totalGop += intervalGop;
+                    gopCount++;
+                }
+
+                // Reset interval
+                intervalGop = 0;
+            } else {
+                // Increment interval on non-key frames
+                intervalGop++;
+            }
+        }
+        
+        private void updateBitrate(VideoStream stream, int size, double duration, boolean keyFrame) {
+            int bitrate = Double.valueOf(size * 0.001 * stream.getBPS() * stream.getFPS()).intValue();
+
+            // Add to bitrate total
+            if(bitrate > 0) {
+                // Check max bitrate
+                // We accumulate at least 1 seconds worth of frames and compare the average bitrate
+                // ensuring we are at a GOP boundary before processing
+                if(intervalDuration > 1.0 && keyFrame) {                            
+                    int test = intervalTotal / intervalCount;
+
+                    if(test > maxBitrate) {
+                        maxBitrate = test;
+                    }
+
+                    // Reset variables
+                    intervalCount = 0;
+                    intervalDuration = 0;
+                    intervalTotal = 0;
+                }
+
+                totalBitrate += bitrate;
+                intervalTotal += bitrate;
+                intervalDuration += duration;
+                frameCount++;
+                intervalCount++;
+            }
+        }
+        
+        // Discard incomplete GOP and bitrate intervals at the end of a sample window
+        private void endWindow() {
+            intervalGop = 0;
+            intervalCount = 0;
+            intervalDuration = 0;
+            intervalTotal = 0;
+        }
+        
+        private void apply(VideoStream stream) {
             if(maxBitrate > 0) {
                 stream.setMaxBitrate(maxBitrate);
             }
@@ -215,36 +612,9 @@ public class FrameParser {
             }
 
             // Interlaced
-            stream.setInterlaced(interlaced);
-            
-        } catch(JsonEOFException ex) {
-            LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "parse() -> " + ex.getClass().getName(), null);
-        } catch(RuntimeException | IOException ex) {
-            LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Unable to parse frames for file " + element.getPath(), ex);
-        } finally {
-            this.stop();
-        }
-        
-        return stream;
-    }
-        
-    // Stop Json parser if running
-    public void stop() {
-        LogService.getInstance().addLogEntry(LogService.Level.DEBUG, CLASS_NAME, "stop()", null);
-        
-        try {
-            if (this.jsonParser != null && !this.jsonParser.isClosed()) {
-                this.jsonParser.close();
-            }
-            
-            if(this.process != null) {
-                this.process.destroy();
+            if(interlaced != null) {
+                stream.setInterlaced(interlaced);
             }
-            
-            this.process = null;
-            this.jsonParser = null;
-        } catch (IOException ex) {
-            LogService.getInstance().addLogEntry(LogService.Level.ERROR, CLASS_NAME, "Failed to stop frame parser.", ex);
         }
     }
 }
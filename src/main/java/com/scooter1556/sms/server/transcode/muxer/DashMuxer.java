@@ -33,6 +33,11 @@ public class DashMuxer implements Muxer {
         this.mode = mode;
     };
     
+    @Override
+    public String toString() {
+        return String.format("DashMuxer[Format=%s, Mode=%s, Client=%s]", format, mode, client);
+    }
+    
     @Override
     public int getFormat() {
         return this.format;
@@ -35,6 +35,11 @@ public class HLSMuxer implements Muxer {
         this.mode = mode;
     };
     
+    @Override
+    public String toString() {
+        return String.format("HLSMuxer[Format=%s, Mode=%s, Client=%s]", format, mode, client);
+    }
+    
     @Override
     public int getFormat() {
         return this.format;
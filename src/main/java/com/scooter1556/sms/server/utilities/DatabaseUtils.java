@@ -23,30 +23,132 @@
  */
 package com.scooter1556.sms.server.utilities;
 
+import com.scooter1556.sms.server.domain.DatabaseStats;
 import com.scooter1556.sms.server.exception.DatabaseException;
 import com.scooter1556.sms.server.service.SettingsService;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.sql.DataSource;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
 public class DatabaseUtils {
     
+    // Connection pool settings
+    public static final int MAX_POOL_SIZE = 10;
+    public static final int MIN_IDLE = 2;
+    public static final long CONNECTION_TIMEOUT = 30000;
+    
+    // Number of parsed statements H2 caches for each pooled connection
+    public static final int QUERY_CACHE_SIZE = 64;
+    
+    // Shared connection pools and statistics indexed by database name and version
+    private static final Map<String, HikariDataSource> dataSources = new ConcurrentHashMap<>();
+    private static final Map<String, PoolMetrics> poolMetrics = new ConcurrentHashMap<>();
+    
+    /**
+     * Returns the shared connection pool for the given database, creating it if required.
+     *
+     * @param db Name of the database.
+     * @param version Version of the database.
+     * @return A pooled data source.
+     * @throws DatabaseException
+     */
     public static DataSource getDataSource(String db, int version) throws DatabaseException {
         if(SettingsService.getInstance().getDataDirectory() == null) {
             throw new DatabaseException("Data directory does not exist or is not writable!");
         }
         
-        DriverManagerDataSource dataSource = new DriverManagerDataSource();
-        dataSource.setDriverClassName("org.h2.jdbcx.JdbcDataSource");
-        dataSource.setUrl("jdbc:h2:" + SettingsService.getInstance().getDataDirectory() + "/db/" + db.toLowerCase() + "." + version + ";" + "IGNORECASE=TRUE;DATABASE_TO_UPPER=FALSE;");
+        String name = getPoolName(db, version);
+        
+        try {
+            return dataSources.computeIfAbsent(name, key -> createDataSource(db, version));
+        } catch(RuntimeException ex) {
+            throw new DatabaseException("Failed to create connection pool for database '" + name + "': " + ex.getMessage());
+        }
+    }
+    
+    private static HikariDataSource createDataSource(String db, int version) {
+        String name = getPoolName(db, version);
+        
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setDriverClassName("org.h2.Driver");
+        config.setJdbcUrl("jdbc:h2:" + SettingsService.getInstance().getDataDirectory() + "/db/" + db.toLowerCase() + "." + version + ";" + "IGNORECASE=TRUE;DATABASE_TO_UPPER=FALSE;QUERY_CACHE_SIZE=" + QUERY_CACHE_SIZE + ";");
+        config.setMaximumPoolSize(MAX_POOL_SIZE);
+        config.setMinimumIdle(MIN_IDLE);
+        config.setConnectionTimeout(CONNECTION_TIMEOUT);
+        config.setMetricsTrackerFactory(new MetricsTrackerFactory() {
+            @Override
+            public IMetricsTracker create(String poolName, PoolStats poolStats) {
+                PoolMetrics metrics = new PoolMetrics();
+                poolMetrics.put(poolName, metrics);
+                return metrics;
+            }
+        });
         
-        return dataSource;
+        return new HikariDataSource(config);
+    }
+    
+    private static String getPoolName(String db, int version) {
+        return db + "." + version;
+    }
+    
+    /**
+     * Returns statistics for each active database connection pool.
+     *
+     * @return A list of connection pool statistics.
+     */
+    public static List<DatabaseStats> getDatabaseStats() {
+        List<DatabaseStats> stats = new ArrayList<>();
+        
+        dataSources.forEach((name, dataSource) -> {
+            HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+            PoolMetrics metrics = poolMetrics.get(name);
+            
+            if(pool == null || metrics == null) {
+                return;
+            }
+            
+            long acquired = metrics.acquired.get();
+            long averageWait = acquired == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(metrics.waitTime.get() / acquired);
+            
+            stats.add(new DatabaseStats(name, pool.getActiveConnections(), pool.getIdleConnections(), pool.getThreadsAwaitingConnection(), acquired, averageWait, TimeUnit.NANOSECONDS.toMicros(metrics.maxWait.get()), metrics.timeouts.get()));
+        });
+        
+        return stats;
+    }
+    
+    /**
+     * Closes the connection pool for the given database if it exists.
+     *
+     * @param db Name of the database.
+     * @param version Version of the database.
+     */
+    public static void closeDataSource(String db, int version) {
+        String name = getPoolName(db, version);
+        HikariDataSource dataSource = dataSources.remove(name);
+        
+        if(dataSource != null) {
+            dataSource.close();
+        }
+        
+        poolMetrics.remove(name);
     }
     
     public static boolean isDatabaseAvailable(String db) {
@@ -123,4 +225,26 @@ public class DatabaseUtils {
             return false;
         }
     }
+    
+    /**
+     * Records connection wait statistics for a connection pool.
+     */
+    private static class PoolMetrics implements IMetricsTracker {
+        private final AtomicLong acquired = new AtomicLong();
+        private final AtomicLong waitTime = new AtomicLong();
+        private final AtomicLong maxWait = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        
+        @Override
+        public void recordConnectionAcquiredNanos(final long elapsedAcquiredNanos) {
+            acquired.incrementAndGet();
+            waitTime.addAndGet(elapsedAcquiredNanos);
+            maxWait.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+        }
+        
+        @Override
+        public void recordConnectionTimeout() {
+            timeouts.incrementAndGet();
+        }
+    }
 }
@@ -67,6 +67,8 @@ public class TranscodeUtils {
     public static final String ISO_PCM = "1";
     
     public static final Integer DEFAULT_SEGMENT_DURATION = 10;
+    public static final Integer DEFAULT_INITIAL_SEGMENT_DURATION = 2;
+    public static final Integer DEFAULT_INITIAL_SEGMENT_COUNT = 3;
 
     public static final String[][] AUDIO_CODEC_FORMAT = {
         {"aac", "adts"},
@@ -954,6 +956,23 @@ public class TranscodeUtils {
         return interval * multiplier;
     }
     
+    //
+    // Returns true if any video stream in the profile is copied rather than transcoded.
+    //
+    public static boolean isVideoCopy(TranscodeProfile profile) {
+        if(profile.getVideoTranscodes() == null) {
+            return false;
+        }
+        
+        for(VideoTranscode transcode : profile.getVideoTranscodes()) {
+            if(transcode.getCodec() == SMS.Codec.COPY) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
     public static Path[] getRenderDevices() {
         List<Path> devices = new ArrayList<>();
         
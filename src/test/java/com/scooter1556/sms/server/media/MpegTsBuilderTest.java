@@ -0,0 +1,232 @@
+/*
+ * Author: Scott Ware <scoot.software@gmail.com>
+ * Copyright (c) 2015 Scott Ware
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.scooter1556.sms.server.media;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mp4parser.boxes.sampleentry.AudioSampleEntry;
+
+public class MpegTsBuilderTest {
+
+    private static final int PACKET_SIZE = 188;
+
+    private MpegTsBuilder builder;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        builder = new MpegTsBuilder(new File("segment"));
+
+        // AC-3 needs no decoder configuration and carries a registration descriptor
+        assertTrue(builder.configure(new AudioSampleEntry("ac-3")));
+    }
+
+    @Test
+    public void crcMatchesMpeg2CheckValue() {
+        assertEquals(0x0376E6E7, MpegTsBuilder.crc32("123456789".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void patPointsToPmt() throws IOException {
+        byte[] packet = Arrays.copyOfRange(writeTables(), 0, PACKET_SIZE);
+
+        assertHeader(packet, 0x0000, true, 0);
+        assertEquals(0x00, packet[4], "Pointer field");
+
+        byte[] section = getSection(packet);
+        assertEquals(0x00, section[0], "Table ID");
+        assertEquals(1, getShort(section, 3), "Transport stream ID");
+        assertEquals(1, getShort(section, 8), "Program number");
+        assertEquals(0x1000, getShort(section, 10) & 0x1FFF, "PMT PID");
+        assertEquals(0, MpegTsBuilder.crc32(section), "Section CRC");
+    }
+
+    @Test
+    public void pmtDescribesElementaryStream() throws IOException {
+        byte[] packet = Arrays.copyOfRange(writeTables(), PACKET_SIZE, PACKET_SIZE * 2);
+
+        assertHeader(packet, 0x1000, true, 0);
+
+        byte[] section = getSection(packet);
+        assertEquals(0x02, section[0], "Table ID");
+        assertEquals(1, getShort(section, 3), "Program number");
+        assertEquals(0x0100, getShort(section, 8) & 0x1FFF, "PCR PID");
+        assertEquals(0, getShort(section, 10) & 0x0FFF, "Program info length");
+        assertEquals(0x81, section[12] & 0xFF, "Stream type");
+        assertEquals(0x0100, getShort(section, 13) & 0x1FFF, "Elementary PID");
+        assertEquals(6, getShort(section, 15) & 0x0FFF, "ES info length");
+        assertEquals(0x05, section[17], "Registration descriptor tag");
+        assertEquals(4, section[18], "Registration descriptor length");
+        assertEquals("AC-3", new String(section, 19, 4, StandardCharsets.US_ASCII));
+        assertEquals(0, MpegTsBuilder.crc32(section), "Section CRC");
+    }
+
+    @Test
+    public void tablesArePaddedToPacketSize() throws IOException {
+        byte[] tables = writeTables();
+
+        assertEquals(PACKET_SIZE * 2, tables.length);
+
+        for(int p = 0; p < 2; p++) {
+            byte[] packet = Arrays.copyOfRange(tables, p * PACKET_SIZE, (p + 1) * PACKET_SIZE);
+            int end = 5 + getSection(packet).length;
+
+            for(int i = end; i < PACKET_SIZE; i++) {
+                assertEquals((byte) 0xFF, packet[i], "Stuffing byte " + i);
+            }
+        }
+    }
+
+    @Test
+    public void smallPesFitsSinglePacket() throws IOException {
+        byte[] data = new byte[100];
+        Arrays.fill(data, (byte) 0x55);
+
+        byte[] output = writePes(data, 900000, 900000, false);
+        assertEquals(PACKET_SIZE, output.length);
+
+        assertHeader(output, 0x0100, true, 0);
+        assertEquals(0x30, output[3] & 0x30, "Adaptation field and payload");
+
+        // Adaptation field with PCR and stuffing
+        int adaptationLength = output[4] & 0xFF;
+        assertTrue((output[5] & 0x10) != 0, "PCR flag");
+        assertEquals(900000 - 63000, getPcrBase(output, 6));
+
+        byte[] pes = Arrays.copyOfRange(output, 5 + adaptationLength, PACKET_SIZE);
+        assertEquals(14 + data.length, pes.length);
+        assertArrayEquals(new byte[] {0x00, 0x00, 0x01, (byte) 0xBD}, Arrays.copyOfRange(pes, 0, 4));
+        assertEquals(data.length + 8, getShort(pes, 4), "PES packet length");
+        assertEquals(0x80, pes[7] & 0xFF, "PTS only");
+        assertEquals(5, pes[8], "PES header data length");
+        assertEquals(0x20, pes[9] & 0xF0, "PTS marker");
+        assertEquals(900000, getTimestamp(pes, 9));
+        assertArrayEquals(data, Arrays.copyOfRange(pes, 14, pes.length));
+    }
+
+    @Test
+    public void pesWithDtsCarriesBothTimestamps() throws IOException {
+        byte[] output = writePes(new byte[10], 0x1FFFFFFFFL, 12345, false);
+        int adaptationLength = output[4] & 0xFF;
+        byte[] pes = Arrays.copyOfRange(output, 5 + adaptationLength, PACKET_SIZE);
+
+        assertEquals(0xC0, pes[7] & 0xFF, "PTS and DTS");
+        assertEquals(10, pes[8], "PES header data length");
+        assertEquals(0x30, pes[9] & 0xF0, "PTS marker");
+        assertEquals(0x10, pes[14] & 0xF0, "DTS marker");
+        assertEquals(0x1FFFFFFFFL, getTimestamp(pes, 9));
+        assertEquals(12345, getTimestamp(pes, 14));
+    }
+
+    @Test
+    public void largePesIsSplitAcrossPackets() throws IOException {
+        byte[] data = new byte[5000];
+
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        byte[] output = writePes(data, 90000, 90000, true);
+        assertEquals(0, output.length % PACKET_SIZE);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        for(int p = 0; p < output.length / PACKET_SIZE; p++) {
+            byte[] packet = Arrays.copyOfRange(output, p * PACKET_SIZE, (p + 1) * PACKET_SIZE);
+            assertHeader(packet, 0x0100, p == 0, p & 0x0F);
+
+            int offset = 4;
+
+            if((packet[3] & 0x20) != 0) {
+                offset += (packet[4] & 0xFF) + 1;
+            }
+
+            if(p == 0) {
+                assertTrue((packet[5] & 0x40) != 0, "Random access indicator");
+            } else {
+                assertFalse((packet[3] & 0x20) != 0 && (packet[4] & 0xFF) > 0 && (packet[5] & 0x10) != 0, "PCR only in first packet");
+            }
+
+            payload.write(packet, offset, PACKET_SIZE - offset);
+        }
+
+        byte[] pes = payload.toByteArray();
+        assertEquals(14 + data.length, pes.length);
+        assertArrayEquals(data, Arrays.copyOfRange(pes, 14, pes.length));
+    }
+
+    private byte[] writeTables() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.writeTables(out);
+        return out.toByteArray();
+    }
+
+    private byte[] writePes(byte[] data, long pts, long dts, boolean randomAccess) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.writePes(out, data, pts, dts, randomAccess);
+        return out.toByteArray();
+    }
+
+    private static void assertHeader(byte[] packet, int pid, boolean start, int continuity) {
+        assertEquals(0x47, packet[0] & 0xFF, "Sync byte");
+        assertEquals(start, (packet[1] & 0x40) != 0, "Payload unit start");
+        assertEquals(pid, getShort(packet, 1) & 0x1FFF, "PID");
+        assertEquals(continuity, packet[3] & 0x0F, "Continuity counter");
+    }
+
+    // Returns a section including its CRC
+    private static byte[] getSection(byte[] packet) {
+        int length = getShort(packet, 6) & 0x0FFF;
+        return Arrays.copyOfRange(packet, 5, 5 + 3 + length);
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static long getTimestamp(byte[] data, int offset) {
+        return (((long) (data[offset] & 0x0E)) << 29)
+                | ((long) (data[offset + 1] & 0xFF) << 22)
+                | ((long) (data[offset + 2] & 0xFE) << 14)
+                | ((long) (data[offset + 3] & 0xFF) << 7)
+                | ((long) (data[offset + 4] & 0xFE) >> 1);
+    }
+
+    private static long getPcrBase(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xFF) << 25)
+                | ((long) (data[offset + 1] & 0xFF) << 17)
+                | ((long) (data[offset + 2] & 0xFF) << 9)
+                | ((long) (data[offset + 3] & 0xFF) << 1)
+                | ((long) (data[offset + 4] & 0x80) >> 7);
+    }
+}